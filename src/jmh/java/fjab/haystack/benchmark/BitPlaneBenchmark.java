@@ -0,0 +1,80 @@
+package fjab.haystack.benchmark;
+
+import fjab.haystack.BitPlaneEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Embedding and extraction of a payload filling the capacity of the image, with {@link BitPlaneEngine} and with a
+ * reference implementation working one bit at a time.<br>
+ * The secondary metric "megabytes" is the throughput in MB of payload (not of image data) per second
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class BitPlaneBenchmark {
+
+    @Param({"1", "2", "4"})
+    public int bitsPerChannel;
+
+    private BitPlaneEngine engine;
+    private byte[] imageData;
+    private byte[] payload;
+    private double payloadMegabytes;
+
+    @Setup(Level.Trial)
+    public void setUp(ImageState state) {
+        engine = new BitPlaneEngine(state.png.imageSize(), bitsPerChannel, false);
+        imageData = state.png.imageData();
+        payload = new byte[(int) engine.capacity()];
+        new Random(42).nextBytes(payload);
+        payloadMegabytes = payload.length / 1e6;
+    }
+
+    @Benchmark
+    public long embed(ImageState state, Throughput throughput) throws IOException {
+        throughput.megabytes += payloadMegabytes;
+        return engine.embed(imageData, new ByteArrayInputStream(payload));
+    }
+
+    @Benchmark
+    public void extract(ImageState state, Throughput throughput) throws IOException {
+        throughput.megabytes += payloadMegabytes;
+        engine.extract(imageData, payload.length, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public byte[] embedBitByBit(ImageState state, Throughput throughput) {
+        throughput.megabytes += payloadMegabytes;
+        int bytesPerPixel = state.png.imageSize().bytesPerPixel();
+        long payloadBits = payload.length * 8L;
+        long bit = 0;
+        for (int i = 0; i < imageData.length && bit < payloadBits; i++) {
+            if (i % bytesPerPixel == 3) continue;
+            for (int b = 0; b < bitsPerChannel && bit < payloadBits; b++, bit++) {
+                int value = (payload[(int) (bit >>> 3)] >>> (bit & 7)) & 1;
+                imageData[i] = (byte) ((imageData[i] & ~(1 << b)) | (value << b));
+            }
+        }
+        return imageData;
+    }
+}
@@ -0,0 +1,43 @@
+package fjab.haystack.benchmark;
+
+import fjab.haystack.util.CompressUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class CompressBenchmark {
+
+    @Benchmark
+    public byte[] compress(ImageState state, Throughput throughput) throws IOException {
+        throughput.megabytes += state.megabytes;
+        return CompressUtil.compress(state.decompressedData);
+    }
+
+    @Benchmark
+    public byte[] decompress(ImageState state, Throughput throughput) throws IOException {
+        throughput.megabytes += state.megabytes;
+        return CompressUtil.decompress(List.<InputStream>of(new ByteArrayInputStream(state.compressedData)));
+    }
+
+    @Benchmark
+    public byte[] inflate(ImageState state, Throughput throughput) throws IOException {
+        throughput.megabytes += state.megabytes;
+        return CompressUtil.inflate(List.of(ByteBuffer.wrap(state.compressedData)), state.decompressedData.length);
+    }
+}
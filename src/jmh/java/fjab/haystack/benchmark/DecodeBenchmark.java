@@ -0,0 +1,72 @@
+package fjab.haystack.benchmark;
+
+import fjab.haystack.PngDecoder;
+import fjab.haystack.domain.Png;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class DecodeBenchmark {
+
+    private ExecutorService inflateExecutor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        inflateExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        inflateExecutor.shutdown();
+    }
+
+    @Benchmark
+    public Png decode(ImageState state, Throughput throughput) throws IOException {
+        throughput.megabytes += state.megabytes;
+        return new PngDecoder(state.sourceFile.toString()).decode();
+    }
+
+    @Benchmark
+    public Png decodePipelined(ImageState state, Throughput throughput) throws IOException {
+        throughput.megabytes += state.megabytes;
+        return new PngDecoder(state.sourceFile.toString()).decodePipelined(inflateExecutor);
+    }
+
+    /**
+     * Metadata query: header and chunk table only, the image data is never accessed
+     */
+    @Benchmark
+    public Png decodeLazy(ImageState state) throws IOException {
+        return new PngDecoder(state.sourceFile.toString()).decodeLazy();
+    }
+
+    /**
+     * Top tenth of the image: only the rows down to the end of the band are inflated
+     */
+    @Benchmark
+    public Png decodeTopBand(ImageState state, Throughput throughput) throws IOException {
+        int rowEnd = Math.max(1, state.png.imageSize().height() / 10);
+        throughput.megabytes += state.megabytes * rowEnd / state.png.imageSize().height();
+        return new PngDecoder(state.sourceFile.toString()).decode(0, rowEnd);
+    }
+}
@@ -0,0 +1,37 @@
+package fjab.haystack.benchmark;
+
+import fjab.haystack.EncoderOptions;
+import fjab.haystack.PngEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class EncodeBenchmark {
+
+    @Benchmark
+    public void encode(ImageState state, Throughput throughput) throws IOException {
+        throughput.megabytes += state.megabytes;
+        new PngEncoder(state.destFile.toString()).encode(state.png);
+    }
+
+    /**
+     * Re-encoding of an unmodified image: the IDAT chunks are copied
+     */
+    @Benchmark
+    public void encodePassthrough(ImageState state, Throughput throughput) throws IOException {
+        throughput.megabytes += state.megabytes;
+        new PngEncoder(state.destFile.toString(), EncoderOptions.defaults().withIdatPassthrough(true)).encode(state.png);
+    }
+}
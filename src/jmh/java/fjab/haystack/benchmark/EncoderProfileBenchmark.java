@@ -0,0 +1,54 @@
+package fjab.haystack.benchmark;
+
+import fjab.haystack.EncoderOptions;
+import fjab.haystack.EncoderProfile;
+import fjab.haystack.PngEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding time against output size for each {@link EncoderProfile}.<br>
+ * The size of the encoded file is printed at the end of each trial, as it does not change from one operation to the next
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class EncoderProfileBenchmark {
+
+    @Param({"FASTEST", "BALANCED", "SMALLEST"})
+    public EncoderProfile profile;
+
+    private long outputSize;
+
+    @Benchmark
+    public void encode(ImageState state) throws IOException {
+        new PngEncoder(state.destFile.toString(), EncoderOptions.of(profile)).encode(state.png);
+    }
+
+    @TearDown(Level.Iteration)
+    public void measureOutputSize(ImageState state) throws IOException {
+        outputSize = Files.size(state.destFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void printOutputSize(ImageState state) {
+        System.out.printf("%n%s %s: %d bytes%n", state.image, profile, outputSize);
+    }
+}
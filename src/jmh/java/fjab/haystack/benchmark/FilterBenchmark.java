@@ -0,0 +1,35 @@
+package fjab.haystack.benchmark;
+
+import fjab.haystack.util.FilterStrategy;
+import fjab.haystack.util.FilterUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class FilterBenchmark {
+
+    @Param({"NONE", "MIN_SUM_ABS_DIFF", "BRUTE_FORCE"})
+    public FilterStrategy strategy;
+
+    @Benchmark
+    public byte[] filter(ImageState state, Throughput throughput) throws IOException {
+        throughput.megabytes += state.megabytes;
+        return FilterUtil.filter(state.png.imageSize(), state.png.readOnlyImageData(), strategy);
+    }
+}
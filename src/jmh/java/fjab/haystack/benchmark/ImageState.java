@@ -0,0 +1,71 @@
+package fjab.haystack.benchmark;
+
+import fjab.haystack.PngDecoder;
+import fjab.haystack.PngEncoder;
+import fjab.haystack.domain.Chunk;
+import fjab.haystack.domain.Png;
+import fjab.haystack.util.CompressUtil;
+import fjab.haystack.util.FilterStrategy;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Input of every stage for one image: the test fixtures, or synthetic images of 1, 16 and 100 megapixels
+ * written to a temporary file with adaptive filtering
+ */
+@State(Scope.Benchmark)
+public class ImageState {
+
+    @Param({"lambda", "event-bridge", "fire", "synthetic-1mp", "synthetic-16mp", "synthetic-100mp"})
+    public String image;
+
+    public Path tempDir;
+    public Path sourceFile;
+    public Path destFile;
+    public Png png;
+    /**
+     * filtered scanlines as stored in the file, input of the unfilter stage
+     */
+    public byte[] decompressedData;
+    public byte[] compressedData;
+    /**
+     * size of the unfiltered image data, used to report throughput
+     */
+    public double megabytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("jhaystack-benchmark");
+        destFile = tempDir.resolve("encoded.png");
+        if (image.startsWith("synthetic-")) {
+            int megapixels = Integer.parseInt(image.substring("synthetic-".length(), image.length() - "mp".length()));
+            sourceFile = tempDir.resolve(image + ".png");
+            new PngEncoder(sourceFile.toString(), FilterStrategy.MIN_SUM_ABS_DIFF).encode(SyntheticImage.generate(megapixels));
+        } else {
+            sourceFile = Paths.get("src/test/resources", image, image + ".png");
+        }
+        png = new PngDecoder(sourceFile.toString()).decode();
+        int decompressedLength = png.imageSize().height() * (png.imageSize().stride() + 1);
+        decompressedData = CompressUtil.inflate(png.idat().stream().map(Chunk::data).toList(), decompressedLength);
+        compressedData = CompressUtil.compress(decompressedData);
+        megabytes = png.readOnlyImageData().length / 1e6;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(destFile);
+        if (!sourceFile.startsWith("src")) {
+            Files.deleteIfExists(sourceFile);
+        }
+        Files.deleteIfExists(tempDir);
+    }
+}
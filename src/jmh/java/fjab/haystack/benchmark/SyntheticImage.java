@@ -0,0 +1,40 @@
+package fjab.haystack.benchmark;
+
+import fjab.haystack.domain.Chunk;
+import fjab.haystack.domain.ImageSize;
+import fjab.haystack.domain.Png;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Truecolour images of arbitrary size with smooth gradients and some noise,
+ * so that filtering and compression behave roughly as with photographs
+ */
+public class SyntheticImage {
+
+    public static Png generate(int width, int height) {
+        int bytesPerPixel = 3;
+        ImageSize imageSize = new ImageSize(width, height, bytesPerPixel, width * bytesPerPixel);
+        byte[] imageData = new byte[height * imageSize.stride()];
+        Random random = new Random(width * 31L + height);
+        int i = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(16);
+                imageData[i++] = (byte) (x * 255 / width + noise);
+                imageData[i++] = (byte) (y * 255 / height + noise);
+                imageData[i++] = (byte) ((x + y) / 8 + noise);
+            }
+        }
+        return new Png(Chunk.ihdr(imageSize), List.of(), Chunk.iend(), imageSize, imageData);
+    }
+
+    /**
+     * @param megapixels approximate number of pixels in millions, the image is square
+     */
+    public static Png generate(int megapixels) {
+        int side = (int) Math.sqrt(megapixels * 1_000_000.0);
+        return generate(side, side);
+    }
+}
@@ -0,0 +1,51 @@
+package fjab.haystack.benchmark;
+
+import fjab.haystack.util.FilterUtil;
+import fjab.haystack.util.UnfilterEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class UnfilterBenchmark {
+
+    private byte[] unfilteredData;
+
+    @Setup(Level.Trial)
+    public void setUp(ImageState state) {
+        unfilteredData = new byte[state.png.imageSize().height() * state.png.imageSize().stride()];
+    }
+
+    @Benchmark
+    public byte[] unfilterReference(ImageState state, Throughput throughput) throws IOException {
+        throughput.megabytes += state.megabytes;
+        return FilterUtil.unfilter(state.decompressedData, state.png.imageSize());
+    }
+
+    /**
+     * Into a separate array, as {@link fjab.haystack.PngDecoder} does, so the decompressed data is left untouched
+     * and does not need to be copied before each invocation
+     */
+    @Benchmark
+    public byte[] unfilterEngine(ImageState state, Throughput throughput) {
+        throughput.megabytes += state.megabytes;
+        UnfilterEngine.unfilter(state.decompressedData, state.png.imageSize(), unfilteredData);
+        return unfilteredData;
+    }
+}
@@ -1,13 +1,30 @@
 package fjab.haystack;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 /**
- * Hello world!
+ * Batch transcoding of a directory tree of PNG files:<br>
+ * {@code App <source dir> <destination dir> [memory budget in MB, default 1024]}
  */
 public class App {
-    public static boolean testMode = true;
 
-    public static void main(String[] args) {
-        testMode = Boolean.parseBoolean(args[0]);
-        System.out.println("testMode: " + testMode);
+    private static final long DEFAULT_MEMORY_BUDGET_MB = 1024;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: App <source dir> <destination dir> [memory budget in MB]");
+            System.exit(1);
+        }
+        Path sourceDir = Paths.get(args[0]);
+        Path destDir = Paths.get(args[1]);
+        long memoryBudgetMb = args.length == 3 ? Long.parseLong(args[2]) : DEFAULT_MEMORY_BUDGET_MB;
+
+        BatchTranscoder.Report report = new BatchTranscoder(sourceDir, destDir, memoryBudgetMb * 1024 * 1024).run();
+        for (BatchTranscoder.FileError error : report.errors()) {
+            System.err.println(error.file() + ": " + error.error());
+        }
+        System.out.println(report);
     }
 }
@@ -0,0 +1,228 @@
+package fjab.haystack;
+
+import fjab.haystack.domain.ImageSize;
+import fjab.haystack.domain.Png;
+import fjab.haystack.observer.StageObserver;
+import fjab.haystack.util.CodecContext;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decodes and re-encodes all the PNG files of a directory tree into another directory, one virtual thread per file.<br>
+ * The memory needed by each file is estimated from its IHDR chunk, read with {@link PngDecoder#decodeLazy()} before
+ * any pixel data is inflated, and the directory walk blocks until the images in flight leave enough of the memory budget
+ * for the next one. A file larger than the whole budget is transcoded on its own.
+ * The scratch buffers kept by the pool of {@link CodecContext}s between files, up to
+ * {@link CodecContext#MAX_RETAINED_BYTES}, are part of the budget.<br>
+ * A file that cannot be transcoded, or a directory that cannot be read, is reported in {@link Report#errors()} without
+ * stopping the batch.
+ */
+public class BatchTranscoder {
+
+    private final Path sourceDir;
+    private final Path destDir;
+    private final long memoryBudget;
+    private final EncoderOptions options;
+    private final StageObserver observer;
+
+    /**
+     * @param memoryBudget maximum number of bytes of image data and intermediate buffers held by the files in flight
+     *                     and by the pooled codec contexts
+     * @param observer     observer shared by the decoders and encoders of all files, so it must be thread-safe
+     */
+    public BatchTranscoder(Path sourceDir, Path destDir, long memoryBudget, EncoderOptions options, StageObserver observer) {
+        this.sourceDir = sourceDir;
+        this.destDir = destDir;
+        this.memoryBudget = memoryBudget;
+        this.options = options;
+        this.observer = observer;
+    }
+
+    public BatchTranscoder(Path sourceDir, Path destDir, long memoryBudget) {
+        this(sourceDir, destDir, memoryBudget, EncoderOptions.defaults(), StageObserver.NOOP);
+    }
+
+    public record FileError(Path file, Exception error) {
+    }
+
+    /**
+     * @param files      number of files found, including the ones that failed, plus the directories that could not be read
+     * @param imageBytes total size of the image data of the files transcoded
+     * @param latencies  transcoding time of each file transcoded, in nanoseconds, in ascending order
+     */
+    public record Report(int files, List<FileError> errors, long imageBytes, long elapsedNanos, long[] latencies) {
+
+        public double filesPerSecond() {
+            return (files - errors.size()) / (elapsedNanos / 1e9);
+        }
+
+        public double megabytesPerSecond() {
+            return imageBytes / 1e6 / (elapsedNanos / 1e9);
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return latency in nanoseconds of the given percentile, 0 if no file was transcoded
+         */
+        public long percentile(double percentile) {
+            if (latencies.length == 0) return 0;
+            int rank = (int) Math.ceil(latencies.length * percentile / 100);
+            return latencies[Math.max(rank, 1) - 1];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("files=%d failed=%d elapsed=%.3fs files/s=%.1f MB/s=%.1f p50=%.3fms p99=%.3fms",
+                    files, errors.size(), elapsedNanos / 1e9, filesPerSecond(), megabytesPerSecond(),
+                    percentile(50) / 1e6, percentile(99) / 1e6);
+        }
+    }
+
+    public Report run() throws IOException {
+        long start = System.nanoTime();
+        // the contexts of the files in flight are out of the pool, and their buffers are counted in estimatedMemory
+        MemoryBudget budget = new MemoryBudget(Math.max(memoryBudget - CodecContext.MAX_RETAINED_BYTES, 0));
+        List<FileError> errors = Collections.synchronizedList(new ArrayList<>());
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        LongAdder imageBytes = new LongAdder();
+        List<Path> pngFiles = listPngFiles(errors);
+        int files = errors.size();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Path file : pngFiles) {
+                files++;
+                Png png;
+                try {
+                    png = new PngDecoder(file.toString(), observer).decodeLazy();
+                } catch (Exception e) {
+                    errors.add(new FileError(file, e));
+                    continue;
+                }
+                long memory = estimatedMemory(png.imageSize());
+                budget.acquire(memory);
+                executor.execute(() -> {
+                    try {
+                        long fileStart = System.nanoTime();
+                        transcode(file, png);
+                        latencies.add(System.nanoTime() - fileStart);
+                        imageBytes.add((long) png.imageSize().height() * png.imageSize().stride());
+                    } catch (Exception e) {
+                        errors.add(new FileError(file, e));
+                    } finally {
+                        budget.release(memory);
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for memory budget", e);
+        }
+        long[] sortedLatencies = latencies.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sortedLatencies);
+        return new Report(files, List.copyOf(errors), imageBytes.sum(), System.nanoTime() - start, sortedLatencies);
+    }
+
+    /**
+     * @param errors receives the files and directories that could not be read, the walk carrying on with the rest of the tree
+     * @return the PNG files of the source directory tree, sorted
+     */
+    private List<Path> listPngFiles(List<FileError> errors) throws IOException {
+        List<Path> pngFiles = new ArrayList<>();
+        Files.walkFileTree(sourceDir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (isPng(file)) {
+                    pngFiles.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                errors.add(new FileError(file, e));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                if (e != null) {
+                    errors.add(new FileError(dir, e));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(pngFiles);
+        return pngFiles;
+    }
+
+    private void transcode(Path file, Png png) throws IOException {
+        Path destFile = destDir.resolve(sourceDir.relativize(file));
+        Files.createDirectories(destFile.getParent());
+        new PngEncoder(destFile.toString(), options, observer).encode(png);
+    }
+
+    private static boolean isPng(Path path) {
+        return Files.isRegularFile(path) && path.getFileName().toString().toLowerCase().endsWith(".png");
+    }
+
+    /**
+     * Image data plus the decompressed, filtered and compressed buffers (the compressed data is at most about
+     * the size of the filtered data)
+     */
+    static long estimatedMemory(ImageSize imageSize) {
+        long filteredLength = (long) imageSize.height() * (imageSize.stride() + 1);
+        return (long) imageSize.height() * imageSize.stride() + 3 * filteredLength;
+    }
+
+    /**
+     * Bytes of memory that can be reserved, waiting for releases when not enough is left.
+     * Based on a lock rather than on synchronized methods, so that virtual threads releasing memory are not pinned
+     */
+    private static class MemoryBudget {
+        private final long capacity;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition released = lock.newCondition();
+        private long available;
+
+        MemoryBudget(long capacity) {
+            this.capacity = capacity;
+            this.available = capacity;
+        }
+
+        void acquire(long bytes) throws InterruptedException {
+            lock.lock();
+            try {
+                // a request larger than the whole budget waits until nothing else is in flight
+                while (available < Math.min(bytes, capacity)) {
+                    released.await();
+                }
+                available -= bytes;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void release(long bytes) {
+            lock.lock();
+            try {
+                available += bytes;
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package fjab.haystack;
+
+import fjab.haystack.domain.ImageSize;
+import fjab.haystack.domain.Png;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Embedding and extraction of a payload in the N least significant bits of the channels of the pixels
+ * (RGB, or RGBA if the alpha channel is selected and the image has one).<br>
+ * The payload is laid out as a stream of bits, least significant bit of each byte first, filling the selected bits of
+ * the image data byte after byte, from bit 0 upwards. Image data is processed 8 bytes at a time as a little-endian long:
+ * the selected bits of the word form a constant mask M (8 bytes always hold a whole number of pixels' worth of channel
+ * pattern, for both 3 and 4 bytes per pixel), so embedding is a single {@link Long#expand} of the next bits of the
+ * payload into M and extraction a single {@link Long#compress} of the word by M.<br>
+ * Payloads are read from and written to streams through a fixed-size buffer, and image data can be processed one row
+ * at a time (see {@link #embedding(ScanlineSource, InputStream)} and {@link #extractor(long, OutputStream)}),
+ * so neither the payload nor the image need to be held in memory.<br>
+ * The length of the payload is not embedded: it has to be known to extract the payload.
+ */
+public class BitPlaneEngine {
+
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final int PAYLOAD_BUFFER_SIZE = 64 * 1024;
+
+    private final ImageSize imageSize;
+    private final int bitsPerChannel;
+    private final boolean alpha;
+    /**
+     * selected bits of each byte of a pixel
+     */
+    private final int[] byteMasks;
+    /**
+     * selected bits of a word of 8 bytes starting at a pixel boundary
+     */
+    private final long wordMask;
+    private final int bitsPerWord;
+
+    /**
+     * @param bitsPerChannel number of least significant bits of each selected channel holding the payload, from 1 to 8
+     * @param alpha          whether the alpha channel (if any) holds payload bits too
+     */
+    public BitPlaneEngine(ImageSize imageSize, int bitsPerChannel, boolean alpha) {
+        if (bitsPerChannel < 1 || bitsPerChannel > 8) {
+            throw new IllegalArgumentException("Bits per channel must be between 1 and 8: " + bitsPerChannel);
+        }
+        this.imageSize = imageSize;
+        this.bitsPerChannel = bitsPerChannel;
+        this.alpha = alpha && imageSize.bytesPerPixel() == 4;
+        int bytesPerPixel = imageSize.bytesPerPixel();
+        int channelMask = (1 << bitsPerChannel) - 1;
+        this.byteMasks = new int[bytesPerPixel];
+        for (int i = 0; i < bytesPerPixel; i++) {
+            byteMasks[i] = i < 3 || this.alpha ? channelMask : 0;
+        }
+        long mask = 0;
+        for (int i = 0; i < 8; i++) {
+            mask |= (long) byteMasks[i % bytesPerPixel] << (8 * i);
+        }
+        this.wordMask = mask;
+        this.bitsPerWord = Long.bitCount(mask);
+    }
+
+    public ImageSize imageSize() {
+        return imageSize;
+    }
+
+    /**
+     * @return number of payload bytes that fit in the image
+     */
+    public long capacity() {
+        int selectedChannels = alpha ? 4 : 3;
+        return (long) imageSize.width() * imageSize.height() * selectedChannels * bitsPerChannel / 8;
+    }
+
+    /**
+     * Embed the payload in the image data of the image, which is flagged as modified
+     *
+     * @return number of payload bytes embedded
+     */
+    public long embed(Png png, InputStream payload) throws IOException {
+        return embed(png.mutableImageData(), payload);
+    }
+
+    /**
+     * Embed the payload in the image data (height * stride bytes)
+     *
+     * @return number of payload bytes embedded
+     * @throws RuntimeException if the payload is larger than the capacity of the image
+     */
+    public long embed(byte[] imageData, InputStream payload) throws IOException {
+        Embedder embedder = new Embedder(payload);
+        embedder.embed(imageData, 0, (int) imageSize.imageDataLength());
+        embedder.checkPayloadEmbedded();
+        return embedder.bytesEmbedded();
+    }
+
+    /**
+     * Extract the payload of the given length from the image data of the image
+     */
+    public void extract(Png png, long payloadLength, OutputStream payload) throws IOException {
+        extract(png.readOnlyImageData(), payloadLength, payload);
+    }
+
+    /**
+     * Extract the payload of the given length from the image data (height * stride bytes)
+     *
+     * @throws RuntimeException if the payload is larger than the capacity of the image
+     */
+    public void extract(byte[] imageData, long payloadLength, OutputStream payload) throws IOException {
+        Extractor extractor = extractor(payloadLength, payload);
+        extractor.extract(imageData, 0, (int) imageSize.imageDataLength());
+        extractor.checkPayloadExtracted();
+    }
+
+    /**
+     * @return source of the scanlines of the given source, with the payload embedded in them
+     */
+    public ScanlineSource embedding(ScanlineSource rows, InputStream payload) {
+        return new ScanlineSource() {
+            private final Embedder embedder = new Embedder(payload);
+            private final byte[] row = new byte[imageSize.stride()];
+            private int rowIndex;
+
+            @Override
+            public ImageSize imageSize() {
+                return imageSize;
+            }
+
+            /**
+             * The scanline is copied before embedding, since the source may use it as the filter context of its next scanline
+             */
+            @Override
+            public byte[] readScanline() throws IOException {
+                byte[] scanline = rows.readScanline();
+                if (scanline == null) {
+                    return null;
+                }
+                System.arraycopy(scanline, 0, row, 0, row.length);
+                embedder.embed(row, 0, row.length);
+                if (++rowIndex == imageSize.height()) {
+                    embedder.checkPayloadEmbedded();
+                }
+                return row;
+            }
+        };
+    }
+
+    /**
+     * @return consumer of the scanlines of the image extracting the payload of the given length, to be passed to
+     * {@link PngDecoder#decodeScanlines(ScanlineConsumer)}
+     */
+    public Extractor extractor(long payloadLength, OutputStream payload) {
+        return new Extractor(payloadLength, payload);
+    }
+
+    /**
+     * Embedding of a payload in consecutive regions of the image data
+     */
+    private class Embedder {
+        private final PayloadReader reader;
+
+        Embedder(InputStream payload) {
+            this.reader = new PayloadReader(payload);
+        }
+
+        /**
+         * @param offset start of a pixel
+         */
+        void embed(byte[] data, int offset, int length) throws IOException {
+            int end = offset + length;
+            int i = offset;
+            for (; i + 8 <= end; i += 8) {
+                int bits = reader.available(bitsPerWord);
+                if (bits == 0) {
+                    return;
+                }
+                long word = (long) LONG.get(data, i);
+                long mask = bits == bitsPerWord ? wordMask : Long.expand(lowBits(bits), wordMask);
+                LONG.set(data, i, (word & ~mask) | Long.expand(reader.take(bits), wordMask));
+            }
+            int bytesPerPixel = byteMasks.length;
+            for (; i < end; i++) {
+                int byteMask = byteMasks[(i - offset) % bytesPerPixel];
+                if (byteMask == 0) {
+                    continue;
+                }
+                int bits = reader.available(bitsPerChannel);
+                if (bits == 0) {
+                    return;
+                }
+                byteMask &= (1 << bits) - 1;
+                data[i] = (byte) ((data[i] & ~byteMask) | (int) reader.take(bits));
+            }
+        }
+
+        long bytesEmbedded() {
+            return reader.bitsRead() / 8;
+        }
+
+        void checkPayloadEmbedded() throws IOException {
+            if (reader.available(1) > 0) {
+                throw new RuntimeException("Payload larger than the capacity of the image (" + capacity() + " bytes)");
+            }
+        }
+    }
+
+    /**
+     * Extraction of a payload from consecutive regions of the image data
+     */
+    public class Extractor implements ScanlineConsumer {
+        private final PayloadWriter writer;
+        private final long payloadBits;
+        private long bitsWritten;
+
+        private Extractor(long payloadLength, OutputStream payload) {
+            this.writer = new PayloadWriter(payload);
+            this.payloadBits = payloadLength * 8;
+        }
+
+        @Override
+        public void accept(int rowIndex, byte[] scanline) throws IOException {
+            extract(scanline, 0, scanline.length);
+        }
+
+        /**
+         * @param offset start of a pixel
+         */
+        void extract(byte[] data, int offset, int length) throws IOException {
+            if (isComplete()) {
+                return;
+            }
+            int end = offset + length;
+            int i = offset;
+            for (; i + 8 <= end && bitsWritten < payloadBits; i += 8) {
+                int bits = (int) Math.min(bitsPerWord, payloadBits - bitsWritten);
+                writer.put(Long.compress((long) LONG.get(data, i), wordMask), bits);
+                bitsWritten += bits;
+            }
+            int bytesPerPixel = byteMasks.length;
+            for (; i < end && bitsWritten < payloadBits; i++) {
+                int byteMask = byteMasks[(i - offset) % bytesPerPixel];
+                if (byteMask == 0) {
+                    continue;
+                }
+                int bits = (int) Math.min(bitsPerChannel, payloadBits - bitsWritten);
+                writer.put(data[i] & byteMask, bits);
+                bitsWritten += bits;
+            }
+            if (bitsWritten == payloadBits) {
+                writer.flush();
+            }
+        }
+
+        public boolean isComplete() {
+            return bitsWritten == payloadBits;
+        }
+
+        void checkPayloadExtracted() {
+            if (!isComplete()) {
+                throw new RuntimeException("Payload larger than the capacity of the image (" + capacity() + " bytes)");
+            }
+        }
+    }
+
+    private static long lowBits(int n) {
+        return n == 64 ? -1L : (1L << n) - 1;
+    }
+
+    /**
+     * Bit stream over a payload stream, reading up to 56 bits at a time with a single unaligned long read
+     */
+    private static class PayloadReader {
+        private final InputStream in;
+        // 8 bytes of padding after the limit, so that a long can always be read
+        private final byte[] buffer = new byte[PAYLOAD_BUFFER_SIZE + 8];
+        private int limit;
+        private long bitPosition;
+        private long bitsRead;
+        private boolean endOfStream;
+
+        PayloadReader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return min(bits, number of bits left in the payload)
+         */
+        int available(int bits) throws IOException {
+            long buffered = limit * 8L - bitPosition;
+            if (buffered < bits && !endOfStream) {
+                fill();
+                buffered = limit * 8L - bitPosition;
+            }
+            return (int) Math.min(bits, buffered);
+        }
+
+        /**
+         * @param bits at most the number of bits returned by {@link #available(int)}
+         */
+        long take(int bits) {
+            if (bits > 56) {
+                long low = take(32);
+                return low | take(bits - 32) << 32;
+            }
+            int index = (int) (bitPosition >>> 3);
+            long value = ((long) LONG.get(buffer, index) >>> (bitPosition & 7)) & lowBits(bits);
+            bitPosition += bits;
+            bitsRead += bits;
+            return value;
+        }
+
+        long bitsRead() {
+            return bitsRead;
+        }
+
+        /**
+         * Move the unread bytes to the start of the buffer and read more bytes after them
+         */
+        private void fill() throws IOException {
+            int start = (int) (bitPosition >>> 3);
+            System.arraycopy(buffer, start, buffer, 0, limit - start);
+            limit -= start;
+            bitPosition &= 7;
+            while (limit < PAYLOAD_BUFFER_SIZE) {
+                int n = in.read(buffer, limit, PAYLOAD_BUFFER_SIZE - limit);
+                if (n < 0) {
+                    endOfStream = true;
+                    break;
+                }
+                limit += n;
+            }
+        }
+    }
+
+    /**
+     * Bit stream into a payload stream, writing whole bytes with a single unaligned long write
+     */
+    private static class PayloadWriter {
+        private final OutputStream out;
+        // 8 bytes of padding after the capacity, so that a long can always be written
+        private final byte[] buffer = new byte[PAYLOAD_BUFFER_SIZE + 8];
+        private int position;
+        private long pending;
+        private int pendingBits;
+
+        PayloadWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * @param value bits to write, with no bit set above the given number of bits
+         */
+        void put(long value, int bits) throws IOException {
+            if (bits > 56) {
+                put(value & 0xFFFFFFFFL, 32);
+                put(value >>> 32, bits - 32);
+                return;
+            }
+            // fewer than 8 bits are pending, so the pending and new bits fit in a long
+            pending |= value << pendingBits;
+            pendingBits += bits;
+            LONG.set(buffer, position, pending);
+            int bytes = pendingBits >>> 3;
+            position += bytes;
+            pending = bytes == 8 ? 0 : pending >>> (bytes * 8);
+            pendingBits &= 7;
+            if (position >= PAYLOAD_BUFFER_SIZE) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+        }
+
+        /**
+         * Write the buffered bytes, and the pending bits as a last byte
+         */
+        void flush() throws IOException {
+            if (pendingBits > 0) {
+                buffer[position++] = (byte) pending;
+                pending = 0;
+                pendingBits = 0;
+            }
+            out.write(buffer, 0, position);
+            position = 0;
+            out.flush();
+        }
+    }
+}
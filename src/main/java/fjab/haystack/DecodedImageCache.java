@@ -0,0 +1,194 @@
+package fjab.haystack;
+
+import fjab.haystack.domain.Chunk;
+import fjab.haystack.domain.Png;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of decoded images in front of {@link PngDecoder#decode()}, keyed by the path of the file together with its size
+ * and last-modified time, so that a file changed on disk is decoded again.<br>
+ * The cache is bounded by the total number of bytes held on the heap by its entries, evicting the least recently used
+ * entries first. An entry weighs its image data plus its IDAT chunks, which a decoded image keeps so that it can be
+ * re-encoded without compressing it again. Misses are decoded under one of several striped locks, so that concurrent misses on the same file
+ * decode it only once while misses on other files proceed in parallel.<br>
+ * Each call returns its own {@link Png#copy()} of the cached image, so that a caller modifying the image data, for
+ * instance with {@link PixelView} or {@link BitPlaneEngine}, does not change the image seen by the other callers.
+ * Copying the image data is much cheaper than inflating and unfiltering it again.
+ */
+public class DecodedImageCache {
+
+    private static final int DEFAULT_STRIPES = 64;
+
+    private record Key(long size, long lastModified) {
+    }
+
+    private record Entry(Key key, Png png, long bytes) {
+    }
+
+    private final long maxBytes;
+    private final ReentrantLock[] stripes;
+    private final ReentrantLock lruLock = new ReentrantLock();
+    // guarded by lruLock, in access order
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public DecodedImageCache(long maxBytes) {
+        this(maxBytes, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param maxBytes maximum number of bytes of image data and IDAT chunks of the cached images
+     * @param stripes  number of locks that misses are spread over
+     */
+    public DecodedImageCache(long maxBytes, int stripes) {
+        if (maxBytes < 0 || stripes <= 0) {
+            throw new IllegalArgumentException("Invalid cache bounds: maxBytes=" + maxBytes + ", stripes=" + stripes);
+        }
+        this.maxBytes = maxBytes;
+        this.stripes = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * @return a copy of the decoded image of the file, from the cache if the file has not changed since it was cached.
+     * An image larger than the whole cache is decoded but not cached
+     */
+    public Png get(Path file) throws IOException {
+        Path path = file.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        Key key = new Key(attributes.size(), attributes.lastModifiedTime().toMillis());
+
+        Png png = lookup(path, key);
+        if (png != null) {
+            hits.increment();
+            return png.copy();
+        }
+        ReentrantLock stripe = stripes[Math.floorMod(path.hashCode(), stripes.length)];
+        stripe.lock();
+        try {
+            // another thread may have decoded the file while this one was waiting for the lock
+            png = lookup(path, key);
+            if (png != null) {
+                hits.increment();
+                return png.copy();
+            }
+            misses.increment();
+            png = new PngDecoder(path.toString()).decode();
+            put(path, new Entry(key, png, weight(png)));
+            return png.copy();
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * @return number of bytes of the image data and of the data of the IDAT chunks of the image
+     */
+    private static long weight(Png png) {
+        return png.imageSize().imageDataLength() + png.idat().stream().mapToLong(Chunk::length).sum();
+    }
+
+    private Png lookup(Path path, Key key) {
+        lruLock.lock();
+        try {
+            Entry entry = entries.get(path);
+            return entry != null && entry.key().equals(key) ? entry.png() : null;
+        } finally {
+            lruLock.unlock();
+        }
+    }
+
+    private void put(Path path, Entry entry) {
+        lruLock.lock();
+        try {
+            // the entry of an older version of the file is replaced
+            Entry previous = entries.remove(path);
+            if (previous != null) {
+                bytes -= previous.bytes();
+            }
+            if (entry.bytes() > maxBytes) {
+                return;
+            }
+            Iterator<Map.Entry<Path, Entry>> lru = entries.entrySet().iterator();
+            while (bytes + entry.bytes() > maxBytes) {
+                bytes -= lru.next().getValue().bytes();
+                lru.remove();
+                evictions.increment();
+            }
+            entries.put(path, entry);
+            bytes += entry.bytes();
+        } finally {
+            lruLock.unlock();
+        }
+    }
+
+    /**
+     * Remove all the entries, without counting them as evictions
+     */
+    public void clear() {
+        lruLock.lock();
+        try {
+            entries.clear();
+            bytes = 0;
+        } finally {
+            lruLock.unlock();
+        }
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return number of cached images
+     */
+    public int size() {
+        lruLock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lruLock.unlock();
+        }
+    }
+
+    /**
+     * @return number of bytes of image data and IDAT chunks of the cached images
+     */
+    public long bytes() {
+        lruLock.lock();
+        try {
+            return bytes;
+        } finally {
+            lruLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DecodedImageCache[entries=%d, bytes=%d/%d, hits=%d, misses=%d, evictions=%d]",
+                size(), bytes(), maxBytes, hitCount(), missCount(), evictionCount());
+    }
+}
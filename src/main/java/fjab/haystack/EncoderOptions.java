@@ -0,0 +1,105 @@
+package fjab.haystack;
+
+import fjab.haystack.domain.Chunk;
+import fjab.haystack.util.FilterStrategy;
+
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+
+/**
+ * @param filterStrategy       how the filter type of each scanline is chosen
+ * @param compressionExecutor  executor deflating blocks of the filtered data concurrently,
+ *                             or null to compress on the calling thread
+ * @param compressionBlockSize approximate number of filtered bytes deflated by each concurrent task
+ *                             (rounded to a whole number of scanlines)
+ * @param idatPassthrough      if true, the IDAT chunks of an image whose data has not been modified since decoding
+ *                             are written as they are, without filtering and compressing the image data again
+ *                             (the filter strategy and compression options then have no effect)
+ * @param compressionLevel     deflate level, from 0 to 9 or {@link Deflater#DEFAULT_COMPRESSION}
+ * @param compressionStrategy  deflate strategy: {@link Deflater#DEFAULT_STRATEGY}, {@link Deflater#FILTERED}
+ *                             or {@link Deflater#HUFFMAN_ONLY}
+ * @param idatChunkSize        maximum number of bytes of compressed data per IDAT chunk,
+ *                             {@link #SINGLE_IDAT_CHUNK} to write all the compressed data in one chunk
+ */
+public record EncoderOptions(FilterStrategy filterStrategy, Executor compressionExecutor, int compressionBlockSize,
+                             boolean idatPassthrough, int compressionLevel, int compressionStrategy, int idatChunkSize) {
+
+    public static final int DEFAULT_COMPRESSION_BLOCK_SIZE = 128 * 1024;
+    /**
+     * Largest chunk length allowed by the PNG specification (2^31 - 1)
+     */
+    public static final int SINGLE_IDAT_CHUNK = Integer.MAX_VALUE;
+
+    public EncoderOptions {
+        if (compressionLevel != Deflater.DEFAULT_COMPRESSION && (compressionLevel < 0 || compressionLevel > 9)) {
+            throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+        }
+        if (compressionStrategy != Deflater.DEFAULT_STRATEGY && compressionStrategy != Deflater.FILTERED
+                && compressionStrategy != Deflater.HUFFMAN_ONLY) {
+            throw new IllegalArgumentException("Invalid compression strategy: " + compressionStrategy);
+        }
+        if (idatChunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid IDAT chunk size: " + idatChunkSize);
+        }
+    }
+
+    public EncoderOptions(FilterStrategy filterStrategy, Executor compressionExecutor, int compressionBlockSize,
+                          boolean idatPassthrough) {
+        this(filterStrategy, compressionExecutor, compressionBlockSize, idatPassthrough,
+                Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY, Chunk.DEFAULT_IDAT_CHUNK_SIZE);
+    }
+
+    public static EncoderOptions defaults() {
+        return new EncoderOptions(FilterStrategy.NONE, null, DEFAULT_COMPRESSION_BLOCK_SIZE, false);
+    }
+
+    /**
+     * @return the default options with the filter strategy and compression settings of the profile
+     */
+    public static EncoderOptions of(EncoderProfile profile) {
+        return defaults().withProfile(profile);
+    }
+
+    /**
+     * @return these options with the filter strategy and compression settings of the profile
+     */
+    public EncoderOptions withProfile(EncoderProfile profile) {
+        return new EncoderOptions(profile.filterStrategy(), compressionExecutor, compressionBlockSize, idatPassthrough,
+                profile.compressionLevel(), profile.compressionStrategy(), profile.idatChunkSize());
+    }
+
+    public EncoderOptions withFilterStrategy(FilterStrategy filterStrategy) {
+        return new EncoderOptions(filterStrategy, compressionExecutor, compressionBlockSize, idatPassthrough,
+                compressionLevel, compressionStrategy, idatChunkSize);
+    }
+
+    public EncoderOptions withCompressionExecutor(Executor compressionExecutor) {
+        return new EncoderOptions(filterStrategy, compressionExecutor, compressionBlockSize, idatPassthrough,
+                compressionLevel, compressionStrategy, idatChunkSize);
+    }
+
+    public EncoderOptions withCompressionBlockSize(int compressionBlockSize) {
+        return new EncoderOptions(filterStrategy, compressionExecutor, compressionBlockSize, idatPassthrough,
+                compressionLevel, compressionStrategy, idatChunkSize);
+    }
+
+    public EncoderOptions withIdatPassthrough(boolean idatPassthrough) {
+        return new EncoderOptions(filterStrategy, compressionExecutor, compressionBlockSize, idatPassthrough,
+                compressionLevel, compressionStrategy, idatChunkSize);
+    }
+
+    public EncoderOptions withCompressionLevel(int compressionLevel) {
+        return new EncoderOptions(filterStrategy, compressionExecutor, compressionBlockSize, idatPassthrough,
+                compressionLevel, compressionStrategy, idatChunkSize);
+    }
+
+    public EncoderOptions withCompressionStrategy(int compressionStrategy) {
+        return new EncoderOptions(filterStrategy, compressionExecutor, compressionBlockSize, idatPassthrough,
+                compressionLevel, compressionStrategy, idatChunkSize);
+    }
+
+    public EncoderOptions withIdatChunkSize(int idatChunkSize) {
+        return new EncoderOptions(filterStrategy, compressionExecutor, compressionBlockSize, idatPassthrough,
+                compressionLevel, compressionStrategy, idatChunkSize);
+    }
+}
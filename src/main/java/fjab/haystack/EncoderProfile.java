@@ -0,0 +1,54 @@
+package fjab.haystack;
+
+import fjab.haystack.domain.Chunk;
+import fjab.haystack.util.FilterStrategy;
+
+import java.util.zip.Deflater;
+
+/**
+ * Presets of the filtering and compression options trading encoding time for output size, see {@link EncoderOptions#of}
+ */
+public enum EncoderProfile {
+    /**
+     * No filtering and Huffman coding only at level 1: the image data is encoded at close to memory speed,
+     * for latency-sensitive paths. (zlib's RLE strategy is not exposed by {@link Deflater}.)
+     */
+    FASTEST(FilterStrategy.NONE, 1, Deflater.HUFFMAN_ONLY, Chunk.DEFAULT_IDAT_CHUNK_SIZE),
+    /**
+     * Filter type chosen by the minimum sum of absolute differences, and default deflate settings
+     */
+    BALANCED(FilterStrategy.MIN_SUM_ABS_DIFF, Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY, Chunk.DEFAULT_IDAT_CHUNK_SIZE),
+    /**
+     * Filter type of each scanline chosen by deflating it with every filter, maximum compression with the strategy
+     * suited to filtered data, and a single IDAT chunk, for archival
+     */
+    SMALLEST(FilterStrategy.BRUTE_FORCE, 9, Deflater.FILTERED, EncoderOptions.SINGLE_IDAT_CHUNK);
+
+    private final FilterStrategy filterStrategy;
+    private final int compressionLevel;
+    private final int compressionStrategy;
+    private final int idatChunkSize;
+
+    EncoderProfile(FilterStrategy filterStrategy, int compressionLevel, int compressionStrategy, int idatChunkSize) {
+        this.filterStrategy = filterStrategy;
+        this.compressionLevel = compressionLevel;
+        this.compressionStrategy = compressionStrategy;
+        this.idatChunkSize = idatChunkSize;
+    }
+
+    public FilterStrategy filterStrategy() {
+        return filterStrategy;
+    }
+
+    public int compressionLevel() {
+        return compressionLevel;
+    }
+
+    public int compressionStrategy() {
+        return compressionStrategy;
+    }
+
+    public int idatChunkSize() {
+        return idatChunkSize;
+    }
+}
@@ -0,0 +1,129 @@
+package fjab.haystack;
+
+import fjab.haystack.domain.ImageSize;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Unfiltered image data held in a memory-mapped file instead of a byte array, so that the image data can exceed 2 GB.<br>
+ * Offsets in the file are longs. The file is mapped through a window of whole rows, moved whenever a row outside
+ * of it is accessed, so that any number of rows can be addressed even though a single mapping cannot exceed 2 GB.
+ * Rows are copied between the file and arrays of one row, which is all the heap memory needed to filter or unfilter
+ * the image row by row.
+ */
+public class OffHeapImage implements Closeable {
+
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private final ImageSize imageSize;
+    private final Path file;
+    private final boolean deleteOnClose;
+    private final FileChannel channel;
+    private final int rowsPerWindow;
+    private MappedByteBuffer window;
+    private int windowStartRow;
+
+    OffHeapImage(ImageSize imageSize, Path file, boolean deleteOnClose, long windowSize) throws IOException {
+        this.imageSize = imageSize;
+        this.file = file;
+        this.deleteOnClose = deleteOnClose;
+        // an existing file is truncated, so that none of its content is left after the image data
+        this.channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.rowsPerWindow = (int) Math.min(imageSize.height(), Math.max(1, windowSize / Math.max(1, imageSize.stride())));
+    }
+
+    /**
+     * @return image backed by a temporary file, deleted when the image is closed
+     */
+    public static OffHeapImage create(ImageSize imageSize) throws IOException {
+        return new OffHeapImage(imageSize, Files.createTempFile("haystack", ".raw"), true, WINDOW_SIZE);
+    }
+
+    /**
+     * @return image backed by the given file, which is created or truncated, and kept when the image is closed
+     */
+    public static OffHeapImage create(ImageSize imageSize, Path file) throws IOException {
+        return new OffHeapImage(imageSize, file, false, WINDOW_SIZE);
+    }
+
+    public ImageSize imageSize() {
+        return imageSize;
+    }
+
+    public Path file() {
+        return file;
+    }
+
+    /**
+     * Copy row rowIndex into dest, starting at destOffset
+     */
+    public void readRow(int rowIndex, byte[] dest, int destOffset) throws IOException {
+        int index = mapRow(rowIndex);
+        window.get(index, dest, destOffset, imageSize.stride());
+    }
+
+    /**
+     * Copy the stride bytes of src starting at srcOffset into row rowIndex
+     */
+    public void writeRow(int rowIndex, byte[] src, int srcOffset) throws IOException {
+        int index = mapRow(rowIndex);
+        window.put(index, src, srcOffset, imageSize.stride());
+    }
+
+    /**
+     * @return source of the rows of the image from the first one, read into a single reused array
+     */
+    public ScanlineSource scanlines() {
+        return new ScanlineSource() {
+            private final byte[] row = new byte[imageSize.stride()];
+            private int nextRowIndex;
+
+            @Override
+            public ImageSize imageSize() {
+                return imageSize;
+            }
+
+            @Override
+            public byte[] readScanline() throws IOException {
+                if (nextRowIndex == imageSize.height()) {
+                    return null;
+                }
+                readRow(nextRowIndex++, row, 0);
+                return row;
+            }
+        };
+    }
+
+    /**
+     * Make sure the window covers the given row
+     *
+     * @return index of the row in the window
+     */
+    private int mapRow(int rowIndex) throws IOException {
+        if (rowIndex < 0 || rowIndex >= imageSize.height()) {
+            throw new IndexOutOfBoundsException("Row " + rowIndex + " is outside of the image");
+        }
+        if (window == null || rowIndex < windowStartRow || rowIndex >= windowStartRow + rowsPerWindow) {
+            windowStartRow = rowIndex - rowIndex % rowsPerWindow;
+            int rows = Math.min(rowsPerWindow, imageSize.height() - windowStartRow);
+            window = channel.map(FileChannel.MapMode.READ_WRITE, (long) windowStartRow * imageSize.stride(), (long) rows * imageSize.stride());
+        }
+        return (rowIndex - windowStartRow) * imageSize.stride();
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+        if (deleteOnClose) {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package fjab.haystack;
+
+import fjab.haystack.domain.ImageSize;
+import fjab.haystack.domain.Png;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Objects;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Access to the pixels of an image as packed ARGB ints (0xAARRGGBB), for truecolour images with 8 bits per sample,
+ * with (RGBA8) or without (RGB8) alpha. Pixels of an image without alpha are read as opaque, and the alpha of the
+ * pixels written to them is ignored.<br>
+ * The view works directly on the image data of the image: every operation is specialized for 3 and 4 bytes per pixel
+ * and neither boxes nor allocates per pixel. Bulk operations check their bounds once, and the first write flags the
+ * image data as modified, so that its IDAT chunks are not reused when encoding the image.<br>
+ * Not thread-safe.
+ */
+public class PixelView {
+
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    /**
+     * Channels of a pixel, in the order of their bytes in the image data
+     */
+    public enum Channel {
+        RED, GREEN, BLUE, ALPHA
+    }
+
+    private final Png png;
+    private byte[] data;
+    private final int width;
+    private final int height;
+    private final int stride;
+    private final boolean alpha;
+    private boolean modified;
+
+    public PixelView(Png png) {
+        ImageSize imageSize = png.imageSize();
+        if (imageSize.bytesPerPixel() != 3 && imageSize.bytesPerPixel() != 4) {
+            throw new IllegalArgumentException("Unsupported number of bytes per pixel: " + imageSize.bytesPerPixel());
+        }
+        this.png = png;
+        this.data = png.readOnlyImageData();
+        this.width = imageSize.width();
+        this.height = imageSize.height();
+        this.stride = imageSize.stride();
+        this.alpha = imageSize.bytesPerPixel() == 4;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public boolean hasAlpha() {
+        return alpha;
+    }
+
+    public int getArgb(int x, int y) {
+        return read(offset(x, y));
+    }
+
+    public void setArgb(int x, int y, int argb) {
+        int offset = offset(x, y);
+        markModified();
+        write(offset, argb);
+    }
+
+    /**
+     * Copy the pixels of row y into dest[off, off + width)
+     */
+    public void getRow(int y, int[] dest, int off) {
+        Objects.checkFromIndexSize(off, width, dest.length);
+        int offset = offset(0, y);
+        if (alpha) {
+            for (int x = 0; x < width; x++, offset += 4) {
+                dest[off + x] = Integer.rotateRight((int) INT.get(data, offset), 8);
+            }
+        } else {
+            for (int x = 0; x < width; x++, offset += 3) {
+                dest[off + x] = 0xFF000000 | (data[offset] & 0xFF) << 16 | (data[offset + 1] & 0xFF) << 8 | data[offset + 2] & 0xFF;
+            }
+        }
+    }
+
+    /**
+     * Put the pixels of row y into dest, starting at its position
+     */
+    public void getRow(int y, IntBuffer dest) {
+        if (dest.remaining() < width) {
+            throw new IndexOutOfBoundsException("Buffer has " + dest.remaining() + " ints remaining, row has " + width + " pixels");
+        }
+        if (dest.hasArray()) {
+            getRow(y, dest.array(), dest.arrayOffset() + dest.position());
+            dest.position(dest.position() + width);
+            return;
+        }
+        int offset = offset(0, y);
+        int bytesPerPixel = alpha ? 4 : 3;
+        for (int x = 0; x < width; x++, offset += bytesPerPixel) {
+            dest.put(read(offset));
+        }
+    }
+
+    /**
+     * Set the pixels of row y to src[off, off + width)
+     */
+    public void setRow(int y, int[] src, int off) {
+        Objects.checkFromIndexSize(off, width, src.length);
+        int offset = offset(0, y);
+        markModified();
+        if (alpha) {
+            for (int x = 0; x < width; x++, offset += 4) {
+                INT.set(data, offset, Integer.rotateLeft(src[off + x], 8));
+            }
+        } else {
+            for (int x = 0; x < width; x++, offset += 3) {
+                int argb = src[off + x];
+                data[offset] = (byte) (argb >>> 16);
+                data[offset + 1] = (byte) (argb >>> 8);
+                data[offset + 2] = (byte) argb;
+            }
+        }
+    }
+
+    /**
+     * Set the pixels of row y to the ints of src, starting at its position
+     */
+    public void setRow(int y, IntBuffer src) {
+        if (src.remaining() < width) {
+            throw new IndexOutOfBoundsException("Buffer has " + src.remaining() + " ints remaining, row has " + width + " pixels");
+        }
+        if (src.hasArray()) {
+            setRow(y, src.array(), src.arrayOffset() + src.position());
+            src.position(src.position() + width);
+            return;
+        }
+        int offset = offset(0, y);
+        markModified();
+        int bytesPerPixel = alpha ? 4 : 3;
+        for (int x = 0; x < width; x++, offset += bytesPerPixel) {
+            write(offset, src.get());
+        }
+    }
+
+    /**
+     * Set every pixel of the region to the given colour.<br>
+     * The first row of the region is written pixel by pixel, and copied to the other rows
+     */
+    public void fill(int x, int y, int regionWidth, int regionHeight, int argb) {
+        checkRegion(x, y, regionWidth, regionHeight);
+        if (regionWidth == 0 || regionHeight == 0) {
+            return;
+        }
+        markModified();
+        int bytesPerPixel = alpha ? 4 : 3;
+        int first = offset(x, y);
+        int end = first + regionWidth * bytesPerPixel;
+        if (alpha) {
+            int rgba = Integer.rotateLeft(argb, 8);
+            for (int offset = first; offset < end; offset += 4) {
+                INT.set(data, offset, rgba);
+            }
+        } else {
+            byte r = (byte) (argb >>> 16);
+            byte g = (byte) (argb >>> 8);
+            byte b = (byte) argb;
+            for (int offset = first; offset < end; offset += 3) {
+                data[offset] = r;
+                data[offset + 1] = g;
+                data[offset + 2] = b;
+            }
+        }
+        for (int row = 1; row < regionHeight; row++) {
+            System.arraycopy(data, first, data, first + row * stride, end - first);
+        }
+    }
+
+    /**
+     * Copy a region of this image to another position of this image. Source and destination can overlap
+     */
+    public void copyRegion(int srcX, int srcY, int regionWidth, int regionHeight, int destX, int destY) {
+        copyRegion(this, srcX, srcY, regionWidth, regionHeight, destX, destY);
+    }
+
+    /**
+     * Copy a region of the source image, which must have the same number of bytes per pixel, to the given position of
+     * this image
+     */
+    public void copyRegion(PixelView source, int srcX, int srcY, int regionWidth, int regionHeight, int destX, int destY) {
+        if (source.alpha != alpha) {
+            throw new IllegalArgumentException("Source and destination images have different numbers of bytes per pixel");
+        }
+        source.checkRegion(srcX, srcY, regionWidth, regionHeight);
+        checkRegion(destX, destY, regionWidth, regionHeight);
+        if (regionWidth == 0 || regionHeight == 0) {
+            return;
+        }
+        markModified();
+        int rowLength = regionWidth * (alpha ? 4 : 3);
+        int srcOffset = source.offset(srcX, srcY);
+        int destOffset = offset(destX, destY);
+        // within the same image, rows are copied bottom-up when the destination is below the source
+        if (source.data == data && destY > srcY) {
+            for (int row = regionHeight - 1; row >= 0; row--) {
+                System.arraycopy(data, srcOffset + row * source.stride, data, destOffset + row * stride, rowLength);
+            }
+        } else {
+            for (int row = 0; row < regionHeight; row++) {
+                System.arraycopy(source.data, srcOffset + row * source.stride, data, destOffset + row * stride, rowLength);
+            }
+        }
+    }
+
+    /**
+     * Replace each value of the channel with lut[value] in every pixel (the alpha channel of an image without alpha is
+     * left as it is)
+     *
+     * @param lut table of 256 values
+     */
+    public void mapChannel(Channel channel, byte[] lut) {
+        if (lut.length != 256) {
+            throw new IllegalArgumentException("Lookup table must have 256 entries: " + lut.length);
+        }
+        if (channel == Channel.ALPHA && !alpha) {
+            return;
+        }
+        markModified();
+        int bytesPerPixel = alpha ? 4 : 3;
+        int length = height * stride;
+        for (int offset = channel.ordinal(); offset < length; offset += bytesPerPixel) {
+            data[offset] = lut[data[offset] & 0xFF];
+        }
+    }
+
+    /**
+     * Replace each value v of the channel with function(v) in every pixel.<br>
+     * The function is evaluated once per possible value (256 times), not once per pixel
+     *
+     * @param function mapping values in [0, 255] to values in [0, 255]
+     */
+    public void mapChannel(Channel channel, IntUnaryOperator function) {
+        byte[] lut = new byte[256];
+        for (int value = 0; value < 256; value++) {
+            lut[value] = (byte) function.applyAsInt(value);
+        }
+        mapChannel(channel, lut);
+    }
+
+    private int read(int offset) {
+        if (alpha) {
+            return Integer.rotateRight((int) INT.get(data, offset), 8);
+        }
+        return 0xFF000000 | (data[offset] & 0xFF) << 16 | (data[offset + 1] & 0xFF) << 8 | data[offset + 2] & 0xFF;
+    }
+
+    private void write(int offset, int argb) {
+        if (alpha) {
+            INT.set(data, offset, Integer.rotateLeft(argb, 8));
+        } else {
+            data[offset] = (byte) (argb >>> 16);
+            data[offset + 1] = (byte) (argb >>> 8);
+            data[offset + 2] = (byte) argb;
+        }
+    }
+
+    private int offset(int x, int y) {
+        Objects.checkIndex(x, width);
+        Objects.checkIndex(y, height);
+        return y * stride + x * (alpha ? 4 : 3);
+    }
+
+    private void checkRegion(int x, int y, int regionWidth, int regionHeight) {
+        Objects.checkFromIndexSize(x, regionWidth, width);
+        Objects.checkFromIndexSize(y, regionHeight, height);
+    }
+
+    private void markModified() {
+        if (!modified) {
+            data = png.mutableImageData();
+            modified = true;
+        }
+    }
+}
@@ -1,69 +1,350 @@
 package fjab.haystack;
 
 import fjab.haystack.domain.Chunk;
+import fjab.haystack.domain.ChunkInfo;
 import fjab.haystack.domain.ImageSize;
 import fjab.haystack.domain.Png;
+import fjab.haystack.observer.Stage;
+import fjab.haystack.observer.StageObserver;
+import fjab.haystack.util.Adam7;
+import fjab.haystack.util.AsyncFileIO;
+import fjab.haystack.util.ChunkInflater;
+import fjab.haystack.util.CodecContext;
 import fjab.haystack.util.CompressUtil;
+import fjab.haystack.util.IdatInputStream;
+import fjab.haystack.util.MappedFile;
+import fjab.haystack.util.PipelinedIdatDecoder;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.zip.CRC32;
 
-import static fjab.haystack.util.FilterUtil.unfilter;
-import static fjab.haystack.util.TestUtil.testName;
-import static fjab.haystack.util.TestUtil.write_test_output;
+import static fjab.haystack.domain.Chunk.CHUNK_METADATA_LENGTH;
+import static fjab.haystack.domain.Chunk.IDAT_SIGNATURE;
+import static fjab.haystack.domain.Chunk.IEND_SIGNATURE;
+import static fjab.haystack.domain.Chunk.IHDR_SIGNATURE;
+import static fjab.haystack.domain.Png.PNG_SIGNATURE;
+
+import static fjab.haystack.util.UnfilterEngine.unfilter;
 import static fjab.haystack.util.Util.checkPngSignature;
-import static fjab.haystack.util.Util.loadFileIntoByteBuffer;
 
 public class PngDecoder {
 
+    /**
+     * Size of the buffers of the streams reading the file and inflating its IDAT data
+     */
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
     private final String sourceFile;
+    private final StageObserver observer;
 
     public PngDecoder(String sourceFile) {
+        this(sourceFile, StageObserver.NOOP);
+    }
+
+    public PngDecoder(String sourceFile, StageObserver observer) {
         this.sourceFile = sourceFile;
+        this.observer = observer;
     }
 
 
     public Png decode() throws IOException {
-        ByteBuffer byteBuffer = loadFileIntoByteBuffer(sourceFile);
-
-        checkPngSignature(byteBuffer);
-
-        Chunk ihdr = null;
-        Chunk iend = null;
-        List<Chunk> idats = new ArrayList<>();
-        CRC32 checkSum = new CRC32();
-        while (byteBuffer.hasRemaining()) {
-            Chunk chunk = decodeChunk(byteBuffer, checkSum);
-            if (chunk.isIHDR())
-                ihdr = chunk;
-            else if (chunk.isIEND())
-                iend = chunk;
-            else if (chunk.isIDAT())
-                idats.add(chunk);
-        }
-        assert ihdr != null;
-        ImageSize imageSize = decodeIhdrData(ihdr);
-        return new Png(
-                ihdr,
-                idats,
-                iend,
-                imageSize,
-                decodeIdatData(idats, imageSize)
-        );
-    }
-
-    private static Chunk decodeChunk(ByteBuffer byteBuffer, CRC32 checkSum) {
-        int chunkLength = byteBuffer.getInt();
-        byte[] chunkType = new byte[4];
-        byteBuffer.get(chunkType);
+        return decode(null, null);
+    }
+
+    /**
+     * Decode with inflation and unfiltering overlapped: the IDAT data is inflated by a task running on the given executor
+     * while the calling thread unfilters the scanlines already inflated.<br>
+     * Interlaced images, and images whose inflating task is run by the executor on the calling thread, are decoded
+     * without pipelining
+     */
+    public Png decodePipelined(Executor inflateExecutor) throws IOException {
+        return decode(Objects.requireNonNull(inflateExecutor), null);
+    }
+
+    /**
+     * Decode the image, calling the listener with a preview of the image after each pass of an interlaced image.<br>
+     * The IDAT data of each pass is inflated only when the previous pass has been delivered to the listener, so the first
+     * preview (1/64 of the pixels) is available after inflating about 1/64 of the data.
+     * For a non-interlaced image, the listener is called once, with pass 7, when the whole image has been decoded
+     */
+    public Png decodeProgressive(ProgressiveListener listener) throws IOException {
+        return decode(null, Objects.requireNonNull(listener));
+    }
+
+    /**
+     * Decode only the signature, the IHDR and IEND chunks and the chunk table of the file, skipping the IDAT data.<br>
+     * The IDAT chunks are read the first time they are accessed, and the image data is decoded the first time it is accessed,
+     * so that metadata queries cost is proportional to the number of chunks rather than to the number of pixels.
+     */
+    public Png decodeLazy() throws IOException {
+        long start = System.nanoTime();
+        try (MappedFile file = MappedFile.open(sourceFile)) {
+            checkPngSignature(file.slice(0, PNG_SIGNATURE.length));
+
+            List<ChunkInfo> chunkIndex = readChunkIndex(file);
+            Chunk ihdr = null;
+            Chunk iend = null;
+            CRC32 checkSum = new CRC32();
+            for (ChunkInfo chunkInfo : chunkIndex) {
+                if (Arrays.equals(chunkInfo.type(), IHDR_SIGNATURE))
+                    ihdr = decodeChunk(file, chunkInfo.offset(), checkSum);
+                else if (Arrays.equals(chunkInfo.type(), IEND_SIGNATURE))
+                    iend = decodeChunk(file, chunkInfo.offset(), checkSum);
+            }
+            if (ihdr == null) {
+                throw new RuntimeException("No IHDR chunk found");
+            }
+            ImageSize imageSize = decodeIhdrData(ihdr);
+            boolean interlaced = isInterlaced(ihdr);
+            observer.stageCompleted(Stage.CHUNK_PARSE, file.size(), System.nanoTime() - start);
+            return new Png(ihdr.onHeap(), iend == null ? null : iend.onHeap(), imageSize, chunkIndex,
+                    () -> readIdatChunks(chunkIndex),
+                    (idats, size) -> {
+                        checkFitsInArray(size);
+                        try (CodecContext context = CodecContext.acquire()) {
+                            return interlaced
+                                    ? decodeInterlacedIdatData(idats, size, context, null)
+                                    : decodeIdatData(idats, size, context);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Decode without blocking the calling thread: the file is opened on the given executor and read with an
+     * {@link java.nio.channels.AsynchronousFileChannel}, and the chunks are parsed, inflated and unfiltered by a task running on the given executor once the read has completed
+     *
+     * @return future completed with the image, or completed exceptionally if the file cannot be read or decoded
+     */
+    public CompletableFuture<Png> decodeAsync(Executor executor) {
+        return AsyncFileIO.readAll(Paths.get(sourceFile), executor).thenApplyAsync(content -> {
+            try {
+                return decode(MappedFile.wrap(content), null, null);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    private Png decode(Executor inflateExecutor, ProgressiveListener listener) throws IOException {
+        try (MappedFile file = MappedFile.open(sourceFile)) {
+            return decode(file, inflateExecutor, listener);
+        }
+    }
+
+    private Png decode(MappedFile file, Executor inflateExecutor, ProgressiveListener listener) throws IOException {
+        long start = System.nanoTime();
+        try (CodecContext context = CodecContext.acquire()) {
+            checkPngSignature(file.slice(0, PNG_SIGNATURE.length));
+
+            List<ChunkInfo> chunkIndex = readChunkIndex(file);
+            Chunk ihdr = null;
+            Chunk iend = null;
+            List<Chunk> idats = new ArrayList<>();
+            for (ChunkInfo chunkInfo : chunkIndex) {
+                Chunk chunk = decodeChunk(file, chunkInfo.offset(), context.checkSum());
+                if (chunk.isIHDR())
+                    ihdr = chunk;
+                else if (chunk.isIEND())
+                    iend = chunk;
+                else if (chunk.isIDAT())
+                    idats.add(chunk);
+            }
+            if (ihdr == null) {
+                throw new RuntimeException("No IHDR chunk found");
+            }
+            ImageSize imageSize = decodeIhdrData(ihdr);
+            checkFitsInArray(imageSize);
+            observer.stageCompleted(Stage.CHUNK_PARSE, file.size(), System.nanoTime() - start);
+            byte[] imageData;
+            if (isInterlaced(ihdr)) {
+                imageData = decodeInterlacedIdatData(idats, imageSize, context, listener);
+            } else {
+                imageData = inflateExecutor == null
+                        ? decodeIdatData(idats, imageSize, context)
+                        : PipelinedIdatDecoder.decode(idats.stream().map(Chunk::data).toList(), imageSize, inflateExecutor, observer);
+                if (listener != null) {
+                    listener.passDecoded(Adam7.PASSES, imageSize, imageData);
+                }
+            }
+            // the chunks kept by the image are copied out of the mapping, which the image would otherwise keep alive,
+            // and which cannot be read anymore if the file is truncated
+            return new Png(ihdr.onHeap(), idats.stream().map(Chunk::onHeap).toList(), iend == null ? null : iend.onHeap(),
+                    imageSize, imageData, chunkIndex);
+        }
+    }
+
+    /**
+     * @return the IDAT chunks listed in the chunk index, copied from the mapped file to the heap
+     */
+    private List<Chunk> readIdatChunks(List<ChunkInfo> chunkIndex) throws IOException {
+        try (MappedFile file = MappedFile.open(sourceFile)) {
+            List<Chunk> idats = new ArrayList<>();
+            CRC32 checkSum = new CRC32();
+            for (ChunkInfo chunkInfo : chunkIndex) {
+                if (Arrays.equals(chunkInfo.type(), IDAT_SIGNATURE)) {
+                    idats.add(decodeChunk(file, chunkInfo.offset(), checkSum).onHeap());
+                }
+            }
+            return idats;
+        }
+    }
+
+    /**
+     * Walk the chunk headers of the file, jumping over the chunk data without reading it
+     */
+    private static List<ChunkInfo> readChunkIndex(MappedFile file) throws IOException {
+        List<ChunkInfo> chunkIndex = new ArrayList<>();
+        long position = PNG_SIGNATURE.length;
+        while (position < file.size()) {
+            int chunkLength = file.getInt(position);
+            if (chunkLength < 0) {
+                throw new RuntimeException("Invalid chunk length");
+            }
+            byte[] chunkType = Chunk.chunkType(file.slice(position + 4, 4));
+            chunkIndex.add(new ChunkInfo(chunkType, position, chunkLength));
+            position += CHUNK_METADATA_LENGTH + chunkLength;
+        }
+        return chunkIndex;
+    }
+
+    /**
+     * Open a reader that inflates and unfilters the image one scanline at a time,
+     * so that the whole image is never held in memory.<br>
+     * Not supported for interlaced images, whose rows are only complete after the last pass
+     */
+    public ScanlineReader openScanlineReader() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sourceFile), STREAM_BUFFER_SIZE));
+        try {
+            checkPngSignature(in);
+
+            ImageSize imageSize = null;
+            CRC32 checkSum = new CRC32();
+            while (true) {
+                int chunkLength = in.readInt();
+                byte[] chunkType = new byte[4];
+                in.readFully(chunkType);
+                if (Arrays.equals(chunkType, IDAT_SIGNATURE)) {
+                    if (imageSize == null) {
+                        throw new RuntimeException("IDAT chunk found before IHDR chunk");
+                    }
+                    return new ScanlineReader(imageSize, new IdatInputStream(in, chunkLength), STREAM_BUFFER_SIZE);
+                }
+                Chunk chunk = decodeChunk(in, chunkType, chunkLength, checkSum);
+                if (chunk.isIHDR()) {
+                    imageSize = decodeIhdrData(chunk);
+                    if (isInterlaced(chunk)) {
+                        throw new RuntimeException("Scanline decoding of interlaced images not supported");
+                    }
+                } else if (chunk.isIEND()) {
+                    throw new RuntimeException("No IDAT chunk found");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Decode the band of rows [rowStart, rowEnd) of the image.<br>
+     * Rows are inflated and unfiltered one at a time, keeping only the previous row as filter context, and reading of
+     * the file stops as soon as the last row of the band has been reconstructed, so that the cost of decoding a band
+     * depends on its position in the image rather than on the height of the image.
+     *
+     * @return image made of the band, whose IHDR chunk has the height of the band
+     */
+    public Png decode(int rowStart, int rowEnd) throws IOException {
+        try (ScanlineReader reader = openScanlineReader()) {
+            ImageSize imageSize = reader.imageSize();
+            if (rowStart < 0 || rowEnd > imageSize.height() || rowStart >= rowEnd) {
+                throw new IllegalArgumentException("Invalid band [" + rowStart + ", " + rowEnd + ") for an image of height " + imageSize.height());
+            }
+            int stride = imageSize.stride();
+            ImageSize bandSize = new ImageSize(imageSize.width(), rowEnd - rowStart, imageSize.bytesPerPixel(), stride);
+            checkFitsInArray(bandSize);
+            byte[] bandData = new byte[(rowEnd - rowStart) * stride];
+            while (reader.nextRowIndex() < rowEnd) {
+                int rowIndex = reader.nextRowIndex();
+                byte[] scanline = reader.readScanline();
+                if (rowIndex >= rowStart) {
+                    System.arraycopy(scanline, 0, bandData, (rowIndex - rowStart) * stride, stride);
+                }
+            }
+            // the rows above the band are inflated and unfiltered too, as the filter context of the first row of the band
+            observer.stageCompleted(Stage.INFLATE, reader.bytesInflated(), reader.inflateNanos());
+            observer.stageCompleted(Stage.UNFILTER, bandData.length, reader.unfilterNanos());
+            observer.stageOutput(Stage.UNFILTER, bandData, bandData.length);
+
+            return new Png(Chunk.ihdr(bandSize), List.of(), Chunk.iend(), bandSize, bandData);
+        }
+    }
+
+    /**
+     * Decode the image into a temporary memory-mapped file, for images whose data does not fit in a byte array.<br>
+     * Scanlines are inflated and unfiltered one at a time, so only two rows are held in the heap
+     */
+    public OffHeapImage decodeOffHeap() throws IOException {
+        try (ScanlineReader reader = openScanlineReader()) {
+            return decodeOffHeap(reader, OffHeapImage.create(reader.imageSize()));
+        }
+    }
+
+    /**
+     * Same as {@link #decodeOffHeap()}, into the given file
+     */
+    public OffHeapImage decodeOffHeap(Path file) throws IOException {
+        try (ScanlineReader reader = openScanlineReader()) {
+            return decodeOffHeap(reader, OffHeapImage.create(reader.imageSize(), file));
+        }
+    }
+
+    private OffHeapImage decodeOffHeap(ScanlineReader reader, OffHeapImage image) throws IOException {
+        try {
+            while (reader.hasNext()) {
+                int rowIndex = reader.nextRowIndex();
+                image.writeRow(rowIndex, reader.readScanline(), 0);
+            }
+        } catch (IOException | RuntimeException e) {
+            image.close();
+            throw e;
+        }
+        observer.stageCompleted(Stage.INFLATE, reader.bytesInflated(), reader.inflateNanos());
+        observer.stageCompleted(Stage.UNFILTER, image.imageSize().imageDataLength(), reader.unfilterNanos());
+        return image;
+    }
+
+    /**
+     * Stream the unfiltered scanlines of the image to the given consumer, holding only two scanlines in memory
+     */
+    public ImageSize decodeScanlines(ScanlineConsumer consumer) throws IOException {
+        try (ScanlineReader reader = openScanlineReader()) {
+            while (reader.hasNext()) {
+                int rowIndex = reader.nextRowIndex();
+                consumer.accept(rowIndex, reader.readScanline());
+            }
+            return reader.imageSize();
+        }
+    }
+
+    private static Chunk decodeChunk(DataInputStream in, byte[] chunkType, int chunkLength, CRC32 checkSum) throws IOException {
         byte[] chunkData = new byte[chunkLength];
-        byteBuffer.get(chunkData);
-        int chunkCrc = byteBuffer.getInt();
+        in.readFully(chunkData);
+        int chunkCrc = in.readInt();
 
         checkSum.reset();
         checkSum.update(chunkType);
@@ -74,15 +355,38 @@ public class PngDecoder {
         return new Chunk(chunkType, chunkData, chunkLength, chunkCrc);
     }
 
+    /**
+     * The type and data of the chunk are slices of the mapped file, so no chunk content is copied
+     */
+    private static Chunk decodeChunk(MappedFile file, long position, CRC32 checkSum) throws IOException {
+        int chunkLength = file.getInt(position);
+        ByteBuffer typeAndData = file.slice(position + 4, 4 + chunkLength);
+        int chunkCrc = file.getInt(position + 8 + chunkLength);
+
+        checkSum.reset();
+        checkSum.update(typeAndData.duplicate());
+        if ((int) checkSum.getValue() != chunkCrc) {
+            throw new RuntimeException("CRC check failed");
+        }
+        byte[] chunkType = Chunk.chunkType(typeAndData);
+        return new Chunk(chunkType, typeAndData.slice(4, chunkLength), chunkLength, chunkCrc);
+    }
+
+    private static void checkFitsInArray(ImageSize imageSize) {
+        if (!imageSize.fitsInArray()) {
+            throw new RuntimeException("Image data larger than 2 GB, use decodeOffHeap");
+        }
+    }
+
     private static ImageSize decodeIhdrData(Chunk ihdr) {
-        byte[] data = ihdr.data();
-        int width = ByteBuffer.wrap(data, 0, 4).getInt();
-        int height = ByteBuffer.wrap(data, 4, 4).getInt();
-        byte bitDepth = data[8];
-        byte colorType = data[9];
-        byte compressionMethod = data[10];
-        byte filterMethod = data[11];
-        byte interlaceMethod = data[12];
+        ByteBuffer data = ihdr.data();
+        int width = data.getInt(0);
+        int height = data.getInt(4);
+        byte bitDepth = data.get(8);
+        byte colorType = data.get(9);
+        byte compressionMethod = data.get(10);
+        byte filterMethod = data.get(11);
+        byte interlaceMethod = data.get(12);
 
         if (compressionMethod != 0) {
             throw new RuntimeException("Compression method not supported");
@@ -90,7 +394,7 @@ public class PngDecoder {
         if (filterMethod != 0) {
             throw new RuntimeException("Filter method not supported");
         }
-        if (interlaceMethod != 0) {
+        if (interlaceMethod != 0 && interlaceMethod != 1) {
             throw new RuntimeException("Interlace method not supported");
         }
         if (bitDepth != 8) {
@@ -102,25 +406,81 @@ public class PngDecoder {
             throw new RuntimeException("Color type not supported");
         }
         int bytesPerPixel = colorType == trueColour ? 3 : 4;
+        if (width <= 0 || height <= 0 || (long) bytesPerPixel * width + 1 > Integer.MAX_VALUE) {
+            throw new RuntimeException("Image dimensions not supported");
+        }
         int stride = bytesPerPixel * width;
         return new ImageSize(width, height, bytesPerPixel, stride);
     }
 
-    private byte[] decodeIdatData(List<Chunk> idats, ImageSize imageSize) throws IOException {
-        byte[] decompressedIdatData = CompressUtil.decompress(concatenateIdatChunks(idats));
-        assert decompressedIdatData.length == (imageSize.height() * imageSize.stride()) + imageSize.height() : "Decompressed data length does not match expected length";
-        write_test_output("decompressedData", testName(sourceFile), decompressedIdatData);
-
-        byte[] unfilteredData = unfilter(decompressedIdatData, imageSize);
-        write_test_output("unfilteredData", testName(sourceFile), unfilteredData);
-        return unfilteredData;
+    private static boolean isInterlaced(Chunk ihdr) {
+        return ihdr.data().get(12) == 1;
     }
 
-    private static List<InputStream> concatenateIdatChunks(List<Chunk> idats) {
-        return idats.stream()
-                .map(idat -> (InputStream) new ByteArrayInputStream(idat.data()))
-                .toList();
+    /**
+     * The decompressed data goes into the scratch buffer of the context, so the unfiltered data is the only array
+     * allocated for the image.<br>
+     * The scanlines are unfiltered straight into that array rather than in place in the scratch buffer: the in-place
+     * {@link fjab.haystack.util.UnfilterEngine#unfilter(byte[], ImageSize)} leaves the image data in a buffer longer than
+     * the image data, which would have to be copied out of it, or be allocated for every image
+     */
+    private byte[] decodeIdatData(List<Chunk> idats, ImageSize imageSize, CodecContext context) throws IOException {
+        long start = System.nanoTime();
+        int expectedLength = (imageSize.height() * imageSize.stride()) + imageSize.height();
+        byte[] decompressedIdatData = context.inflateBuffer(expectedLength);
+        CompressUtil.inflate(idats.stream().map(Chunk::data).toList(), decompressedIdatData, expectedLength, context.inflater());
+        observer.stageCompleted(Stage.INFLATE, expectedLength, System.nanoTime() - start);
+        observer.stageOutput(Stage.INFLATE, decompressedIdatData, expectedLength);
+
+        start = System.nanoTime();
+        byte[] unfilteredData = new byte[imageSize.height() * imageSize.stride()];
+        unfilter(decompressedIdatData, imageSize, unfilteredData);
+        observer.stageCompleted(Stage.UNFILTER, unfilteredData.length, System.nanoTime() - start);
+        observer.stageOutput(Stage.UNFILTER, unfilteredData, unfilteredData.length);
+        return unfilteredData;
     }
 
+    /**
+     * Inflate and deinterlace the passes one after the other, the filtered data of each pass going into the scratch
+     * buffer of the context, so that only the unfiltered data (and the preview if there is a listener) is allocated
+     */
+    private byte[] decodeInterlacedIdatData(List<Chunk> idats, ImageSize imageSize, CodecContext context,
+                                            ProgressiveListener listener) throws IOException {
+        long inflateNanos = 0;
+        long unfilterNanos = 0;
+        int maxPassLength = 0;
+        for (int pass = 1; pass <= Adam7.PASSES; pass++) {
+            maxPassLength = Math.max(maxPassLength, (int) Adam7.passSize(imageSize, pass).filteredDataLength());
+        }
+        byte[] passData = context.inflateBuffer(maxPassLength);
+        byte[] unfilteredData = new byte[imageSize.height() * imageSize.stride()];
+        byte[] preview = listener == null ? null : new byte[unfilteredData.length];
+        try (ChunkInflater inflater = new ChunkInflater(idats.stream().map(Chunk::data).toList(), context.inflater())) {
+            for (int pass = 1; pass <= Adam7.PASSES; pass++) {
+                long start = System.nanoTime();
+                int passLength = (int) Adam7.passSize(imageSize, pass).filteredDataLength();
+                inflater.inflateFully(passData, 0, passLength);
+                if (pass == Adam7.PASSES) {
+                    inflater.finish();
+                }
+                long inflated = System.nanoTime();
+                Adam7.deinterlacePass(passData, imageSize, pass, unfilteredData);
+                inflateNanos += inflated - start;
+                unfilterNanos += System.nanoTime() - inflated;
 
+                if (listener != null) {
+                    if (pass == Adam7.PASSES) {
+                        listener.passDecoded(pass, imageSize, unfilteredData);
+                    } else {
+                        Adam7.preview(unfilteredData, imageSize, pass, preview);
+                        listener.passDecoded(pass, imageSize, preview);
+                    }
+                }
+            }
+            observer.stageCompleted(Stage.INFLATE, inflater.bytesInflated(), inflateNanos);
+        }
+        observer.stageCompleted(Stage.UNFILTER, unfilteredData.length, unfilterNanos);
+        observer.stageOutput(Stage.UNFILTER, unfilteredData, unfilteredData.length);
+        return unfilteredData;
+    }
 }
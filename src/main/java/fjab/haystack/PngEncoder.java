@@ -3,41 +3,201 @@ package fjab.haystack;
 import fjab.haystack.domain.Chunk;
 import fjab.haystack.domain.ImageSize;
 import fjab.haystack.domain.Png;
+import fjab.haystack.observer.Stage;
+import fjab.haystack.observer.StageObserver;
+import fjab.haystack.util.AsyncFileIO;
+import fjab.haystack.util.CodecContext;
 import fjab.haystack.util.CompressUtil;
+import fjab.haystack.util.FilterStrategy;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.zip.CRC32;
 
 import static fjab.haystack.domain.Chunk.CHUNK_METADATA_LENGTH;
 import static fjab.haystack.domain.Chunk.IDAT_SIGNATURE;
 import static fjab.haystack.util.FilterUtil.filter;
 import static fjab.haystack.domain.Png.PNG_SIGNATURE;
-import static fjab.haystack.util.TestUtil.testName;
-import static fjab.haystack.util.TestUtil.write_test_output;
 
 public class PngEncoder {
 
 
     private final String destFile;
+    private final EncoderOptions options;
+    private final StageObserver observer;
 
     public PngEncoder(String destFile) {
+        this(destFile, EncoderOptions.defaults());
+    }
+
+    public PngEncoder(String destFile, FilterStrategy filterStrategy) {
+        this(destFile, EncoderOptions.defaults().withFilterStrategy(filterStrategy));
+    }
+
+    public PngEncoder(String destFile, EncoderOptions options) {
+        this(destFile, options, StageObserver.NOOP);
+    }
+
+    public PngEncoder(String destFile, EncoderOptions options, StageObserver observer) {
         this.destFile = destFile;
+        this.options = options;
+        this.observer = observer;
     }
 
+    /**
+     * The filtered and compressed data are held in the scratch buffers of a pooled {@link CodecContext},
+     * and the IDAT chunks are written straight from the compressed data.<br>
+     * With {@link EncoderOptions#idatPassthrough()}, the IDAT chunks of an image whose data has not been modified
+     * are copied instead, so that the image data is neither decoded (if the image was decoded lazily) nor re-encoded
+     */
     public void encode(Png png) throws IOException {
-        try (
-                FileOutputStream fos = new FileOutputStream(destFile)
-        ) {
-            fos.write(PNG_SIGNATURE);
-            fos.write(encodeChunk(png.ihdr()).array());
-            fos.write(encodeIdat(png.imageSize(), png.imageData()).array());
-            fos.write(encodeChunk(png.iend()).array());
+        if (options.idatPassthrough() && png.hasReusableIdat()) {
+            encodeStreaming(png);
+            return;
+        }
+        try (CodecContext context = CodecContext.acquire()) {
+            CompressedData compressed = filterAndCompress(png, context);
+
+            long start = System.nanoTime();
+            Chunk ihdr = ihdrOf(png);
+            long bytesWritten;
+            try (
+                    FileOutputStream fos = new FileOutputStream(destFile)
+            ) {
+                fos.write(PNG_SIGNATURE);
+                fos.write(encodeChunk(ihdr).array());
+                bytesWritten = writeIdatChunks(fos::write, options.idatChunkSize(), compressed.data(), compressed.length(), context.checkSum());
+                fos.write(encodeChunk(png.iend()).array());
+            }
+            bytesWritten += PNG_SIGNATURE.length + 2L * CHUNK_METADATA_LENGTH + ihdr.length() + png.iend().length();
+            observer.stageCompleted(Stage.WRITE, bytesWritten, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Encode without blocking the calling thread: the image is filtered and compressed by a task running on the given
+     * executor, and the encoded file is then opened on the executor and written with an
+     * {@link java.nio.channels.AsynchronousFileChannel}
+     *
+     * @return future completed when the file has been written, or completed exceptionally if the image cannot be encoded or written
+     */
+    public CompletableFuture<Void> encodeAsync(Png png, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return encodeToBuffers(png);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor).thenCompose(buffers -> {
+            long start = System.nanoTime();
+            return AsyncFileIO.writeAll(Paths.get(destFile), buffers, executor)
+                    .thenAccept(bytesWritten -> observer.stageCompleted(Stage.WRITE, bytesWritten, System.nanoTime() - start));
+        });
+    }
+
+    /**
+     * @return the content of the encoded file, laid out in heap buffers so that the pooled {@link CodecContext} is
+     * released before the file is written
+     */
+    private List<ByteBuffer> encodeToBuffers(Png png) throws IOException {
+        if (options.idatPassthrough() && png.hasReusableIdat()) {
+            List<ByteBuffer> buffers = new ArrayList<>();
+            buffers.add(ByteBuffer.wrap(PNG_SIGNATURE));
+            buffers.add(encodeChunk(png.ihdr()));
+            for (Chunk idat : png.idat()) {
+                buffers.add(encodeChunk(idat));
+            }
+            buffers.add(encodeChunk(png.iend()));
+            return buffers;
+        }
+        try (CodecContext context = CodecContext.acquire()) {
+            CompressedData compressed = filterAndCompress(png, context);
+            Chunk ihdr = ihdrOf(png);
+            int numChunks = (int) Math.ceil(compressed.length() / (double) options.idatChunkSize());
+            long fileLength = PNG_SIGNATURE.length + (2L + numChunks) * CHUNK_METADATA_LENGTH
+                    + ihdr.length() + compressed.length() + png.iend().length();
+            if (fileLength > Integer.MAX_VALUE) {
+                throw new RuntimeException("Encoded image larger than 2 GB, use encodeStreaming");
+            }
+            ByteBuffer file = ByteBuffer.allocate((int) fileLength);
+            file.put(PNG_SIGNATURE);
+            file.put(encodeChunk(ihdr));
+            writeIdatChunks(file::put, options.idatChunkSize(), compressed.data(), compressed.length(), context.checkSum());
+            file.put(encodeChunk(png.iend()));
+            return List.of(file.flip());
+        }
+    }
+
+    /**
+     * Compressed data held in the first length bytes of data
+     */
+    private record CompressedData(byte[] data, int length) {
+    }
+
+    /**
+     * Filter and compress the image data into the scratch buffers of the context
+     */
+    private CompressedData filterAndCompress(Png png, CodecContext context) throws IOException {
+        ImageSize imageSize = png.imageSize();
+        int filteredLength = imageSize.height() * (imageSize.stride() + 1);
+        long start = System.nanoTime();
+        byte[] filteredData = filter(imageSize, png.readOnlyImageData(), options.filterStrategy(), context.filterBuffer(filteredLength));
+        observer.stageCompleted(Stage.FILTER, filteredLength, System.nanoTime() - start);
+        observer.stageOutput(Stage.FILTER, filteredData, filteredLength);
+
+        start = System.nanoTime();
+        byte[] compressedData;
+        int compressedLength;
+        if (options.compressionExecutor() == null) {
+            compressedData = context.deflateBuffer(CompressUtil.compressBound(filteredLength));
+            compressedLength = CompressUtil.compress(filteredData, filteredLength, context.deflater(options.compressionLevel(), options.compressionStrategy()), compressedData);
+        } else {
+            compressedData = compressInParallel(imageSize, filteredData, filteredLength);
+            compressedLength = compressedData.length;
+        }
+        observer.stageCompleted(Stage.DEFLATE, compressedLength, System.nanoTime() - start);
+        observer.stageOutput(Stage.DEFLATE, compressedData, compressedLength);
+        return new CompressedData(compressedData, compressedLength);
+    }
+
+    /**
+     * Encode the image with {@link StreamingPngEncoder}, so that the filtered and compressed data are never held in memory
+     */
+    public void encodeStreaming(Png png) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(destFile),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            new StreamingPngEncoder(channel, options, observer).encode(png);
+        }
+    }
+
+    /**
+     * Encode an image held in a memory-mapped file with {@link StreamingPngEncoder}, filtering it row by row
+     */
+    public void encode(OffHeapImage image) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(destFile),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            new StreamingPngEncoder(channel, options, observer).encode(image.scanlines());
         }
     }
 
-    private ByteBuffer encodeChunk(Chunk chunk) {
+    /**
+     * @return the IHDR chunk of the image, or a non-interlaced IHDR chunk if the image is interlaced,
+     * since the image data is always encoded without interlacing
+     */
+    static Chunk ihdrOf(Png png) {
+        return png.ihdr().data().get(12) == 0 ? png.ihdr() : Chunk.ihdr(png.imageSize());
+    }
+
+    static ByteBuffer encodeChunk(Chunk chunk) {
         ByteBuffer buffer = ByteBuffer.allocate(CHUNK_METADATA_LENGTH + chunk.length());
         buffer.putInt(chunk.length());
         buffer.put(chunk.type());
@@ -47,38 +207,46 @@ public class PngEncoder {
         return buffer;
     }
 
-    private ByteBuffer encodeIdat(ImageSize imageSize, byte[] imageData) throws IOException {
-        byte[] filteredData = filter(imageSize, imageData);
-        write_test_output("filteredData", testName(destFile), filteredData);
-        byte[] compressedData = CompressUtil.compress(filteredData);
-        write_test_output("compressedData", testName(destFile), compressedData);
-        // split compressed data into IDAT chunks of at most 2^16 - 1 bytes
-        int chunkSize = 65535;
-        return splitDataIntoIdatChunks(chunkSize, compressedData);
+    private byte[] compressInParallel(ImageSize imageSize, byte[] filteredData, int filteredLength) throws IOException {
+        // blocks are made of whole scanlines
+        int filteredStride = imageSize.stride() + 1;
+        int blockSize = Math.max(1, options.compressionBlockSize() / filteredStride) * filteredStride;
+        return CompressUtil.compress(filteredData, filteredLength, options.compressionLevel(), options.compressionStrategy(), blockSize,
+                options.compressionExecutor());
+    }
 
+    /**
+     * Destination of the bytes of the IDAT chunks, either a stream or a buffer
+     */
+    @FunctionalInterface
+    private interface ByteSink {
+        void write(byte[] b, int off, int len) throws IOException;
     }
 
-    private ByteBuffer splitDataIntoIdatChunks(int chunkSize, byte[] compressedData) {
-        CRC32 checkSum = new CRC32();
-        int numChunks = (int) Math.ceil(compressedData.length / (double) chunkSize);
-        int bufferCapacity = numChunks * CHUNK_METADATA_LENGTH + compressedData.length;
-        ByteBuffer buffer = ByteBuffer.allocate(bufferCapacity);
+    /**
+     * Write the compressed data as IDAT chunks of at most chunkSize bytes
+     *
+     * @return number of bytes written
+     */
+    private static long writeIdatChunks(ByteSink out, int chunkSize, byte[] compressedData, int compressedLength, CRC32 checkSum) throws IOException {
         byte[] chunkType = IDAT_SIGNATURE;
+        ByteBuffer header = ByteBuffer.allocate(8);
+        int numChunks = (int) Math.ceil(compressedLength / (double) chunkSize);
         for (int i = 0; i < numChunks; i++) {
             int offset = i * chunkSize;
-            int remainingBytes = compressedData.length - offset;
-            int chunkLength = Math.min(chunkSize, remainingBytes);
-            byte[] chunkData = new byte[chunkLength];
-            System.arraycopy(compressedData, offset, chunkData, 0, chunkLength);
+            int chunkLength = Math.min(chunkSize, compressedLength - offset);
             checkSum.reset();
             checkSum.update(chunkType);
-            checkSum.update(chunkData);
-            Chunk chunk = new Chunk(chunkType, chunkData, chunkLength, (int) checkSum.getValue());
-            buffer.put(encodeChunk(chunk));
+            checkSum.update(compressedData, offset, chunkLength);
+
+            header.clear();
+            header.putInt(chunkLength).put(chunkType);
+            out.write(header.array(), 0, 8);
+            out.write(compressedData, offset, chunkLength);
+            header.clear();
+            header.putInt((int) checkSum.getValue());
+            out.write(header.array(), 0, 4);
         }
-        return buffer;
+        return (long) numChunks * CHUNK_METADATA_LENGTH + compressedLength;
     }
-
-
 }
-
@@ -0,0 +1,20 @@
+package fjab.haystack;
+
+import fjab.haystack.domain.ImageSize;
+
+import java.io.IOException;
+
+/**
+ * Callback receiving a preview of an interlaced image after each of the 7 passes of its decoding
+ */
+@FunctionalInterface
+public interface ProgressiveListener {
+
+    /**
+     * @param pass      number of the Adam7 pass just decoded, from 1 to 7
+     * @param imageSize size of the image
+     * @param preview   image data (height * stride bytes) at the resolution reached after the pass, see
+     *                  {@link fjab.haystack.util.Adam7#preview}; the array is reused and must be copied if it needs to be retained
+     */
+    void passDecoded(int pass, ImageSize imageSize, byte[] preview) throws IOException;
+}
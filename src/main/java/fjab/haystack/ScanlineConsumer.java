@@ -0,0 +1,16 @@
+package fjab.haystack;
+
+import java.io.IOException;
+
+/**
+ * Callback receiving the unfiltered scanlines of an image in order
+ */
+@FunctionalInterface
+public interface ScanlineConsumer {
+
+    /**
+     * @param rowIndex index of the scanline in the image
+     * @param scanline unfiltered bytes of the scanline; the array is reused and must be copied if it needs to be retained
+     */
+    void accept(int rowIndex, byte[] scanline) throws IOException;
+}
@@ -0,0 +1,138 @@
+package fjab.haystack;
+
+import fjab.haystack.domain.ImageSize;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static fjab.haystack.util.UnfilterEngine.unfilterScanline;
+
+/**
+ * Pull-based access to the unfiltered scanlines of an image.<br>
+ * Only the current and the previous scanlines are held in memory: IDAT data is inflated incrementally
+ * and each row is unfiltered as soon as it has been inflated.<br>
+ * Reading the last row also reads the end of the IDAT data, so that the same checks are done as when decoding the
+ * whole image: the zlib stream must end right after the last row (which verifies its Adler-32 checksum), and the CRC of
+ * the last IDAT chunk is verified.<br>
+ * The time spent inflating and unfiltering the rows is accumulated separately, so that readers of whole images or
+ * bands can report the two stages to a {@link fjab.haystack.observer.StageObserver}.
+ */
+public class ScanlineReader implements ScanlineSource, Closeable {
+
+    private final ImageSize imageSize;
+    private final InputStream compressedData;
+    private final Inflater inflater = new Inflater();
+    private final InputStream inflatedData;
+    private byte[] currentRow;
+    private byte[] previousRow;
+    private int nextRowIndex;
+    private long inflateNanos;
+    private long unfilterNanos;
+
+    /**
+     * @param bufferSize size of the buffer that compressed data is read into
+     */
+    ScanlineReader(ImageSize imageSize, InputStream compressedData, int bufferSize) {
+        this.imageSize = imageSize;
+        this.compressedData = compressedData;
+        this.inflatedData = new InflaterInputStream(compressedData, inflater, bufferSize);
+        this.currentRow = new byte[imageSize.stride()];
+        this.previousRow = new byte[imageSize.stride()];
+    }
+
+    @Override
+    public ImageSize imageSize() {
+        return imageSize;
+    }
+
+    /**
+     * @return index of the row that will be returned by the next call to {@link #readScanline()}
+     */
+    public int nextRowIndex() {
+        return nextRowIndex;
+    }
+
+    public boolean hasNext() {
+        return nextRowIndex < imageSize.height();
+    }
+
+    /**
+     * @return time spent inflating the rows read so far, including the check of the end of the IDAT data
+     */
+    public long inflateNanos() {
+        return inflateNanos;
+    }
+
+    /**
+     * @return time spent unfiltering the rows read so far
+     */
+    public long unfilterNanos() {
+        return unfilterNanos;
+    }
+
+    /**
+     * @return number of bytes inflated so far, filter type bytes included. Not available once the reader is closed
+     */
+    public long bytesInflated() {
+        return inflater.getBytesWritten();
+    }
+
+    /**
+     * The returned array is reused: its content is only valid until the next call to this method
+     *
+     * @return the next unfiltered scanline, or null if all scanlines have been read
+     */
+    @Override
+    public byte[] readScanline() throws IOException {
+        if (!hasNext()) {
+            return null;
+        }
+        long start = System.nanoTime();
+        int filterType = inflatedData.read();
+        if (filterType < 0 || inflatedData.readNBytes(currentRow, 0, currentRow.length) != currentRow.length) {
+            throw new EOFException("Decompressed data is shorter than expected");
+        }
+        long inflated = System.nanoTime();
+        int stride = imageSize.stride();
+        unfilterScanline((byte) filterType, currentRow, 0, currentRow, 0,
+                nextRowIndex == 0 ? null : previousRow, 0, stride, imageSize.bytesPerPixel());
+        long unfiltered = System.nanoTime();
+        inflateNanos += inflated - start;
+        unfilterNanos += unfiltered - inflated;
+
+        byte[] row = currentRow;
+        currentRow = previousRow;
+        previousRow = row;
+        nextRowIndex++;
+        if (!hasNext()) {
+            finish();
+            inflateNanos += System.nanoTime() - unfiltered;
+        }
+        return row;
+    }
+
+    private void finish() throws IOException {
+        if (inflatedData.read() >= 0) {
+            throw new IOException("Decompressed data is longer than expected");
+        }
+        if (!inflater.finished()) {
+            throw new IOException("Compressed data requires a preset dictionary");
+        }
+        // the CRC of the last IDAT chunk is verified when its end is read
+        compressedData.transferTo(OutputStream.nullOutputStream());
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            inflatedData.close();
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package fjab.haystack;
+
+import fjab.haystack.domain.ImageSize;
+
+import java.io.IOException;
+
+/**
+ * Sequential supplier of the unfiltered scanlines of an image, so that images can be encoded without being held in memory
+ */
+public interface ScanlineSource {
+
+    ImageSize imageSize();
+
+    /**
+     * @return the next scanline (stride bytes); the array can be reused by the source once this method is called again
+     */
+    byte[] readScanline() throws IOException;
+}
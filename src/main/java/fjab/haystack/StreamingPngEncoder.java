@@ -0,0 +1,159 @@
+package fjab.haystack;
+
+import fjab.haystack.domain.Chunk;
+import fjab.haystack.domain.ImageSize;
+import fjab.haystack.domain.Png;
+import fjab.haystack.observer.Stage;
+import fjab.haystack.observer.StageObserver;
+import fjab.haystack.util.CodecContext;
+import fjab.haystack.util.IdatOutputStream;
+import fjab.haystack.util.ScanlineFilter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static fjab.haystack.domain.Png.PNG_SIGNATURE;
+
+/**
+ * Encoder writing the PNG datastream to a channel as it is produced: each scanline is filtered and fed to the deflater,
+ * and each IDAT chunk is written as soon as it is full.<br>
+ * Memory is bounded by two scanlines plus a few chunk-sized buffers, whatever the size of the image.
+ * The compression executor of the options is not used: the whole stream is deflated on the calling thread.
+ */
+public class StreamingPngEncoder {
+
+    private static final int DEFLATER_BUFFER_SIZE = 64 * 1024;
+
+    private final WritableByteChannel channel;
+    private final EncoderOptions options;
+    private final StageObserver observer;
+
+    /**
+     * @param channel destination, left open after encoding
+     */
+    public StreamingPngEncoder(WritableByteChannel channel, EncoderOptions options, StageObserver observer) {
+        this.channel = channel;
+        this.options = options;
+        this.observer = observer;
+    }
+
+    public StreamingPngEncoder(WritableByteChannel channel) {
+        this(channel, EncoderOptions.defaults(), StageObserver.NOOP);
+    }
+
+    /**
+     * @param out destination, left open after encoding
+     */
+    public StreamingPngEncoder(OutputStream out) {
+        this(Channels.newChannel(out));
+    }
+
+    /**
+     * With {@link EncoderOptions#idatPassthrough()}, the IDAT chunks of an image whose data has not been modified
+     * are written as they are
+     */
+    public void encode(Png png) throws IOException {
+        if (options.idatPassthrough() && png.hasReusableIdat()) {
+            copyIdat(png);
+            return;
+        }
+        ImageSize imageSize = png.imageSize();
+        byte[] imageData = png.readOnlyImageData();
+        int stride = imageSize.stride();
+        encode(PngEncoder.ihdrOf(png), png.iend(), imageSize, (filter, row, dest) -> filter.filterScanline(
+                imageData, row * stride,
+                row == 0 ? null : imageData, (row - 1) * stride,
+                dest, 0));
+    }
+
+    /**
+     * Encode the scanlines supplied by the source, as a non-interlaced truecolour image
+     */
+    public void encode(ScanlineSource source) throws IOException {
+        ImageSize imageSize = source.imageSize();
+        byte[] previousRow = new byte[imageSize.stride()];
+        encode(Chunk.ihdr(imageSize), Chunk.iend(), imageSize, (filter, row, dest) -> {
+            byte[] scanline = source.readScanline();
+            filter.filterScanline(scanline, 0, row == 0 ? null : previousRow, 0, dest, 0);
+            System.arraycopy(scanline, 0, previousRow, 0, previousRow.length);
+        });
+    }
+
+    @FunctionalInterface
+    private interface RowFilter {
+        void filterRow(ScanlineFilter filter, int row, byte[] dest) throws IOException;
+    }
+
+    private void encode(Chunk ihdr, Chunk iend, ImageSize imageSize, RowFilter rowFilter) throws IOException {
+        long start = System.nanoTime();
+        writeFully(ByteBuffer.wrap(PNG_SIGNATURE));
+        writeFully(PngEncoder.encodeChunk(ihdr));
+
+        byte[] filteredRow = new byte[imageSize.stride() + 1];
+        long filterNanos = 0;
+        long deflateNanos = 0;
+        long idatWriteNanos;
+        long bytesWritten;
+        try (CodecContext context = CodecContext.acquire()) {
+            Deflater deflater = context.deflater(options.compressionLevel(), options.compressionStrategy());
+            try (ScanlineFilter filter = new ScanlineFilter(imageSize, options.filterStrategy());
+                 IdatOutputStream idat = new IdatOutputStream(channel, options.idatChunkSize());
+                 DeflaterOutputStream dos = new DeflaterOutputStream(idat, deflater, DEFLATER_BUFFER_SIZE)) {
+                for (int row = 0; row < imageSize.height(); row++) {
+                    long rowStart = System.nanoTime();
+                    rowFilter.filterRow(filter, row, filteredRow);
+                    long filtered = System.nanoTime();
+                    dos.write(filteredRow);
+                    filterNanos += filtered - rowStart;
+                    deflateNanos += System.nanoTime() - filtered;
+                }
+                long finishStart = System.nanoTime();
+                dos.finish();
+                idat.close();
+                deflateNanos += System.nanoTime() - finishStart;
+                observer.stageCompleted(Stage.FILTER, (long) imageSize.height() * filteredRow.length, filterNanos);
+                // the IDAT chunks are written to the channel from within the deflater output stream
+                idatWriteNanos = idat.writeNanos();
+                observer.stageCompleted(Stage.DEFLATE, deflater.getBytesWritten(), deflateNanos - idatWriteNanos);
+                bytesWritten = idat.bytesWritten();
+            }
+        }
+
+        writeFully(PngEncoder.encodeChunk(iend));
+        bytesWritten += PNG_SIGNATURE.length + 2L * Chunk.CHUNK_METADATA_LENGTH + ihdr.length() + iend.length();
+        observer.stageCompleted(Stage.WRITE, bytesWritten, System.nanoTime() - start - filterNanos - (deflateNanos - idatWriteNanos));
+    }
+
+    private void copyIdat(Png png) throws IOException {
+        long start = System.nanoTime();
+        writeFully(ByteBuffer.wrap(PNG_SIGNATURE));
+        writeFully(PngEncoder.encodeChunk(png.ihdr()));
+        long bytesWritten = PNG_SIGNATURE.length + Chunk.CHUNK_METADATA_LENGTH + png.ihdr().length();
+        ByteBuffer header = ByteBuffer.allocate(8);
+        ByteBuffer crc = ByteBuffer.allocate(4);
+        for (Chunk chunk : png.idat()) {
+            header.clear();
+            header.putInt(chunk.length()).put(chunk.type()).flip();
+            crc.clear();
+            crc.putInt(chunk.crc()).flip();
+            writeFully(header);
+            writeFully(chunk.data());
+            writeFully(crc);
+            bytesWritten += Chunk.CHUNK_METADATA_LENGTH + chunk.length();
+        }
+        writeFully(PngEncoder.encodeChunk(png.iend()));
+        bytesWritten += Chunk.CHUNK_METADATA_LENGTH + png.iend().length();
+        observer.stageCompleted(Stage.WRITE, bytesWritten, System.nanoTime() - start);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
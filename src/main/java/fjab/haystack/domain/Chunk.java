@@ -1,6 +1,8 @@
 package fjab.haystack.domain;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.zip.CRC32;
 
 /**
  * Chunk structure (<a href="https://www.w3.org/TR/png/#5Chunk-layout">Chunk layout</a>):<br>
@@ -8,18 +10,95 @@ import java.util.Arrays;
  * - Chunk type: a sequence of 4 bytes defining the chunk type, e.g. for IHDR chunks, this sequence is 73 72 68 82.<br>
  * - Chunk data: the data bytes appropriate to the chunk type, if any<br>
  * - CRC: 32-bit CRC calculated on the preceding bytes in the chunk, including the chunk type field and chunk data fields,
- * but not including the length field. The CRC is always present, even for chunks containing no data
+ * but not including the length field. The CRC is always present, even for chunks containing no data<br><br>
+ * Chunk data is held as a buffer so that decoded chunks can be slices of the mapped file instead of copies
  */
-public record Chunk(byte[] type, byte[] data, int length, int crc) {
+public record Chunk(byte[] type, ByteBuffer data, int length, int crc) {
 
     public static final byte[] IHDR_SIGNATURE = new byte[]{73, 72, 68, 82};
     public static final byte[] IDAT_SIGNATURE = new byte[]{73, 68, 65, 84};
     public static final byte[] IEND_SIGNATURE = new byte[]{73, 69, 78, 68};
 
+    private static final int IHDR_TYPE_CODE = ByteBuffer.wrap(IHDR_SIGNATURE).getInt();
+    private static final int IDAT_TYPE_CODE = ByteBuffer.wrap(IDAT_SIGNATURE).getInt();
+    private static final int IEND_TYPE_CODE = ByteBuffer.wrap(IEND_SIGNATURE).getInt();
+
     private static final int CHUNK_LENGTH_LENGTH = 4; //bytes
     private static final int CHUNK_TYPE_LENGTH = 4; //bytes
     private static final int CHUNK_CRC_LENGTH = 4; //bytes
     public static final int CHUNK_METADATA_LENGTH = CHUNK_LENGTH_LENGTH + CHUNK_TYPE_LENGTH + CHUNK_CRC_LENGTH;
+    /**
+     * Compressed data is split into IDAT chunks of at most 2^16 - 1 bytes
+     */
+    public static final int DEFAULT_IDAT_CHUNK_SIZE = 65535;
+
+    public Chunk(byte[] type, byte[] data, int length, int crc) {
+        this(type, ByteBuffer.wrap(data), length, crc);
+    }
+
+    /**
+     * @return a chunk with the given type and data, and its CRC
+     */
+    public static Chunk of(byte[] type, byte[] data) {
+        CRC32 checkSum = new CRC32();
+        checkSum.update(type);
+        checkSum.update(data);
+        return new Chunk(type, data, data.length, (int) checkSum.getValue());
+    }
+
+    /**
+     * @return IHDR chunk of a non-interlaced truecolour image with 8 bits per sample, with alpha if there are 4 bytes per pixel
+     */
+    public static Chunk ihdr(ImageSize imageSize) {
+        ByteBuffer data = ByteBuffer.allocate(13);
+        data.putInt(imageSize.width());
+        data.putInt(imageSize.height());
+        data.put((byte) 8); // bit depth
+        data.put((byte) (imageSize.bytesPerPixel() == 4 ? 6 : 2)); // truecolour with or without alpha
+        data.put((byte) 0); // compression method
+        data.put((byte) 0); // filter method
+        data.put((byte) 0); // interlace method
+        return of(IHDR_SIGNATURE, data.array());
+    }
+
+    public static Chunk iend() {
+        return of(IEND_SIGNATURE, new byte[0]);
+    }
+
+    /**
+     * @return a view of the chunk data with its own position, so that reading it does not affect other readers
+     */
+    @Override
+    public ByteBuffer data() {
+        return data.duplicate();
+    }
+
+    /**
+     * @return this chunk if its data is on the heap, otherwise a copy of it with its data copied to the heap, so that
+     * it does not depend on the memory mapping of the file it was decoded from
+     */
+    public Chunk onHeap() {
+        if (!data.isDirect()) {
+            return this;
+        }
+        byte[] heapData = new byte[length];
+        data.get(0, heapData);
+        return new Chunk(type, heapData, length, crc);
+    }
+
+    /**
+     * @return the chunk type read from the given 4 bytes, sharing the signature arrays of the critical chunks
+     * instead of allocating a new array for them
+     */
+    public static byte[] chunkType(ByteBuffer typeBytes) {
+        int typeCode = typeBytes.getInt(0);
+        if (typeCode == IDAT_TYPE_CODE) return IDAT_SIGNATURE;
+        if (typeCode == IHDR_TYPE_CODE) return IHDR_SIGNATURE;
+        if (typeCode == IEND_TYPE_CODE) return IEND_SIGNATURE;
+        byte[] type = new byte[4];
+        typeBytes.get(0, type);
+        return type;
+    }
 
     public boolean isIHDR() {
         return Arrays.equals(this.type, IHDR_SIGNATURE);
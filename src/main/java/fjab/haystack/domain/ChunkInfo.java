@@ -0,0 +1,21 @@
+package fjab.haystack.domain;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Entry of the chunk table of a PNG file: type of the chunk, offset of its length field in the file
+ * and length of its data field
+ */
+public record ChunkInfo(byte[] type, long offset, int length) {
+
+    public String typeName() {
+        return new String(type, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return offset in the file of the data field of the chunk
+     */
+    public long dataOffset() {
+        return offset + 8;
+    }
+}
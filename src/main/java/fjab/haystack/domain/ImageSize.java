@@ -7,4 +7,30 @@ package fjab.haystack.domain;
  * @param stride        sequence of bytes corresponding to a row of pixels (width * bytesPerPixel)
  */
 public record ImageSize(int width, int height, int bytesPerPixel, int stride) {
+
+    /**
+     * Largest array length supported by the JVMs
+     */
+    private static final long MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    /**
+     * @return number of bytes of the unfiltered image data (height * stride)
+     */
+    public long imageDataLength() {
+        return (long) height * stride;
+    }
+
+    /**
+     * @return number of bytes of the filtered image data, each scanline being preceded by its filter type (height * (stride + 1))
+     */
+    public long filteredDataLength() {
+        return (long) height * (stride + 1);
+    }
+
+    /**
+     * @return true if both the unfiltered and the filtered image data fit in a byte array
+     */
+    public boolean fitsInArray() {
+        return filteredDataLength() <= MAX_ARRAY_LENGTH;
+    }
 }
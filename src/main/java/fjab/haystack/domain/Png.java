@@ -1,7 +1,168 @@
 package fjab.haystack.domain;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
 
-public record Png(Chunk ihdr, List<Chunk> idat, Chunk iend, ImageSize imageSize, byte[] imageData) {
+/**
+ * Decoded PNG image.<br>
+ * The IDAT chunks and the image data of an image decoded lazily are only read, respectively decoded,
+ * the first time they are accessed.<br>
+ * The image keeps track of whether its image data may have been modified since decoding, so that an unmodified image
+ * can be re-encoded by copying its IDAT chunks. The image data is only written through the array returned by
+ * {@link #mutableImageData()}: {@link #imageData()} returns a copy, and the array returned by
+ * {@link #readOnlyImageData()} must not be written.
+ */
+public final class Png {
     public static final byte[] PNG_SIGNATURE = new byte[]{-119, 80, 78, 71, 13, 10, 26, 10};
+
+    /**
+     * Reading of the IDAT chunks of an image decoded lazily
+     */
+    @FunctionalInterface
+    public interface IdatLoader {
+        List<Chunk> load() throws IOException;
+    }
+
+    /**
+     * Decoding of the image data of an image decoded lazily
+     */
+    @FunctionalInterface
+    public interface ImageDataDecoder {
+        byte[] decode(List<Chunk> idat, ImageSize imageSize) throws IOException;
+    }
+
+    private final Chunk ihdr;
+    private final Chunk iend;
+    private final ImageSize imageSize;
+    private final List<ChunkInfo> chunkIndex;
+    private List<Chunk> idat;
+    private byte[] imageData;
+    private IdatLoader idatLoader;
+    private ImageDataDecoder imageDataDecoder;
+    private boolean modified;
+
+    public Png(Chunk ihdr, List<Chunk> idat, Chunk iend, ImageSize imageSize, byte[] imageData) {
+        this(ihdr, idat, iend, imageSize, imageData, List.of());
+    }
+
+    /**
+     * @param chunkIndex chunk table of the file the image was decoded from
+     */
+    public Png(Chunk ihdr, List<Chunk> idat, Chunk iend, ImageSize imageSize, byte[] imageData, List<ChunkInfo> chunkIndex) {
+        this.ihdr = ihdr;
+        this.idat = idat;
+        this.iend = iend;
+        this.imageSize = imageSize;
+        this.imageData = imageData;
+        this.chunkIndex = chunkIndex;
+    }
+
+    /**
+     * Image whose IDAT chunks and image data are provided on first access
+     */
+    public Png(Chunk ihdr, Chunk iend, ImageSize imageSize, List<ChunkInfo> chunkIndex,
+               IdatLoader idatLoader, ImageDataDecoder imageDataDecoder) {
+        this(ihdr, null, iend, imageSize, null, chunkIndex);
+        this.idatLoader = idatLoader;
+        this.imageDataDecoder = imageDataDecoder;
+    }
+
+    public Chunk ihdr() {
+        return ihdr;
+    }
+
+    public Chunk iend() {
+        return iend;
+    }
+
+    public ImageSize imageSize() {
+        return imageSize;
+    }
+
+    /**
+     * @return chunk table of the file the image was decoded from, in file order, or an empty list if the image
+     * was not decoded from a file
+     */
+    public List<ChunkInfo> chunkIndex() {
+        return chunkIndex;
+    }
+
+    public synchronized List<Chunk> idat() {
+        if (idat == null) {
+            try {
+                idat = idatLoader.load();
+                idatLoader = null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return idat;
+    }
+
+    /**
+     * @return a copy of the image data, writing into which does not modify the image
+     */
+    public byte[] imageData() {
+        return readOnlyImageData().clone();
+    }
+
+    /**
+     * @return the image data, without copying it. The array must not be written, as the image would not know
+     * that its IDAT chunks no longer hold its image data: use {@link #mutableImageData()} to modify the image
+     */
+    public synchronized byte[] readOnlyImageData() {
+        if (imageData == null) {
+            try {
+                imageData = imageDataDecoder.decode(idat(), imageSize);
+                imageDataDecoder = null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return imageData;
+    }
+
+    /**
+     * @return the image data, which is flagged as modified
+     */
+    public synchronized byte[] mutableImageData() {
+        byte[] data = readOnlyImageData();
+        modified = true;
+        return data;
+    }
+
+    public synchronized boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * @return true if the IDAT chunks hold the current image data, and so can be written as they are
+     */
+    public synchronized boolean hasReusableIdat() {
+        return !modified && (idatLoader != null || (idat != null && !idat.isEmpty()));
+    }
+
+    /**
+     * @return false if the image was decoded lazily and its image data has not been accessed yet
+     */
+    public synchronized boolean isLoaded() {
+        return imageData != null;
+    }
+
+    /**
+     * @return an image with a copy of the image data, and the same chunks, which are never modified.
+     * The image data of an image decoded lazily whose image data has not been accessed yet is decoded separately by the copy
+     */
+    public synchronized Png copy() {
+        Png copy;
+        if (imageData != null) {
+            copy = new Png(ihdr, idat, iend, imageSize, imageData.clone(), chunkIndex);
+        } else {
+            List<Chunk> loadedIdat = idat;
+            copy = new Png(ihdr, iend, imageSize, chunkIndex, loadedIdat != null ? () -> loadedIdat : idatLoader, imageDataDecoder);
+        }
+        copy.modified = modified;
+        return copy;
+    }
 }
@@ -0,0 +1,90 @@
+package fjab.haystack.observer;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms per stage, with power-of-two buckets of nanoseconds.<br>
+ * Thread-safe, so a single instance can be shared by all the decoders and encoders of a service
+ */
+public class LatencyHistogramObserver implements StageObserver {
+
+    private static final int NUM_BUCKETS = 64;
+
+    private final Map<Stage, Histogram> histograms = new EnumMap<>(Stage.class);
+
+    public LatencyHistogramObserver() {
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new Histogram());
+        }
+    }
+
+    @Override
+    public void stageCompleted(Stage stage, long bytes, long nanos) {
+        histograms.get(stage).record(bytes, nanos);
+    }
+
+    public long count(Stage stage) {
+        return histograms.get(stage).count.sum();
+    }
+
+    public long totalBytes(Stage stage) {
+        return histograms.get(stage).bytes.sum();
+    }
+
+    public long totalNanos(Stage stage) {
+        return histograms.get(stage).nanos.sum();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound in nanoseconds of the bucket containing the given percentile, 0 if no event was recorded
+     */
+    public long percentile(Stage stage, double percentile) {
+        return histograms.get(stage).percentile(percentile);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            long count = count(stage);
+            if (count == 0) continue;
+            sb.append(String.format("%-12s count=%d bytes=%d mean=%dns p50<=%dns p99<=%dns max<=%dns%n",
+                    stage, count, totalBytes(stage), totalNanos(stage) / count,
+                    percentile(stage, 50), percentile(stage, 99), percentile(stage, 100)));
+        }
+        return sb.toString();
+    }
+
+    private static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        void record(long bytes, long nanos) {
+            // bucket i holds the latencies in [2^(i-1), 2^i - 1]
+            buckets.incrementAndGet(NUM_BUCKETS - Long.numberOfLeadingZeros(Math.max(nanos, 0)));
+            this.count.increment();
+            this.bytes.add(bytes);
+            this.nanos.add(nanos);
+        }
+
+        long percentile(double percentile) {
+            long total = count.sum();
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= Math.max(rank, 1)) {
+                    return (1L << i) - 1;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package fjab.haystack.observer;
+
+/**
+ * Stages of decoding and encoding reported to a {@link StageObserver}
+ */
+public enum Stage {
+    /**
+     * Signature check, chunk parsing and CRC verification (decoding)
+     */
+    CHUNK_PARSE,
+    /**
+     * Decompression of the IDAT data into filtered scanlines (decoding)
+     */
+    INFLATE,
+    /**
+     * Reconstruction of the image data from the filtered scanlines (decoding)
+     */
+    UNFILTER,
+    /**
+     * Filtering of the image data into filtered scanlines (encoding)
+     */
+    FILTER,
+    /**
+     * Compression of the filtered scanlines (encoding)
+     */
+    DEFLATE,
+    /**
+     * Writing of the chunks to the destination file (encoding)
+     */
+    WRITE
+}
@@ -0,0 +1,34 @@
+package fjab.haystack.observer;
+
+/**
+ * Receives the events of the stages of a decoder or an encoder.<br>
+ * All methods do nothing by default, so that implementations only override the events they need
+ * and the calls to {@link #NOOP} are optimised away.<br>
+ * Events are not always reported on the thread that called the decoder or the encoder. Pipelined decoding reports
+ * {@link Stage#INFLATE} from the thread of the inflating task. Asynchronous decoding and encoding report every stage
+ * from their executor. The two threads of a pipelined decode can report their stages at the same time. So an
+ * observer used with an executor, or shared by several decoders and encoders, must be thread-safe.
+ */
+public interface StageObserver {
+
+    StageObserver NOOP = new StageObserver() {
+    };
+
+    /**
+     * @param bytes number of bytes produced (or, for {@link Stage#CHUNK_PARSE}, read) by the stage
+     * @param nanos elapsed time of the stage
+     */
+    default void stageCompleted(Stage stage, long bytes, long nanos) {
+    }
+
+    /**
+     * Called with the whole output of the stages that materialize it in a single array
+     * ({@link Stage#INFLATE}, {@link Stage#UNFILTER}, {@link Stage#FILTER} and {@link Stage#DEFLATE}).
+     * The array must not be modified, and its content is only guaranteed during the call: later stages can work in place on it
+     * and scratch buffers are reused by the next image
+     *
+     * @param length number of bytes of output at the start of data, which can be a larger scratch buffer
+     */
+    default void stageOutput(Stage stage, byte[] data, int length) {
+    }
+}
@@ -0,0 +1,41 @@
+package fjab.haystack.observer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes the intermediate buffers of decoding and encoding into a directory, with the names
+ * of the files compared against the test fixtures
+ */
+public class TestOutputObserver implements StageObserver {
+
+    private final Path outputDir;
+
+    public TestOutputObserver(Path outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    @Override
+    public void stageOutput(Stage stage, byte[] data, int length) {
+        String filename = switch (stage) {
+            case INFLATE -> "decompressedData";
+            case UNFILTER -> "unfilteredData";
+            case FILTER -> "filteredData";
+            case DEFLATE -> "compressedData";
+            default -> null;
+        };
+        if (filename != null) {
+            try {
+                Files.createDirectories(outputDir);
+                try (OutputStream out = Files.newOutputStream(outputDir.resolve(filename))) {
+                    out.write(data, 0, length);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
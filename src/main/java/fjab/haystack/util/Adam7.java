@@ -0,0 +1,126 @@
+package fjab.haystack.util;
+
+import fjab.haystack.domain.ImageSize;
+
+/**
+ * Adam7 interlacing (<a href="https://www.w3.org/TR/png/#8Interlace">Interlace and pass extraction</a>).<br>
+ * The image is split into 7 reduced images, each made of the pixels at fixed offsets of every 8x8 block of the image:<br><br>
+ * | 1 6 4 6 2 6 4 6 | <br>
+ * | 7 7 7 7 7 7 7 7 | <br>
+ * | 5 6 5 6 5 6 5 6 | <br>
+ * | 7 7 7 7 7 7 7 7 | <br>
+ * | 3 6 4 6 3 6 4 6 | <br>
+ * | 7 7 7 7 7 7 7 7 | <br>
+ * | 5 6 5 6 5 6 5 6 | <br>
+ * | 7 7 7 7 7 7 7 7 | <br><br>
+ * Each reduced image is filtered on its own, and the filtered reduced images follow each other in the decompressed data.
+ * Passes are numbered from 1 to 7.
+ */
+public class Adam7 {
+
+    public static final int PASSES = 7;
+
+    private static final int[] X_START = {0, 4, 0, 2, 0, 1, 0};
+    private static final int[] Y_START = {0, 0, 4, 0, 2, 0, 1};
+    private static final int[] X_STEP = {8, 8, 4, 4, 2, 2, 1};
+    private static final int[] Y_STEP = {8, 8, 8, 4, 4, 2, 2};
+
+    /*
+        After pass p, the pixels decoded so far are those whose coordinates are multiples of BLOCK_WIDTH[p - 1] and BLOCK_HEIGHT[p - 1],
+        so that every block of that size has its top-left pixel decoded
+     */
+    private static final int[] BLOCK_WIDTH = {8, 4, 4, 2, 2, 1, 1};
+    private static final int[] BLOCK_HEIGHT = {8, 8, 4, 4, 2, 2, 1};
+
+    /**
+     * @return size of the reduced image of the pass, whose width or height is 0 if the pass is empty
+     */
+    public static ImageSize passSize(ImageSize imageSize, int pass) {
+        int i = pass - 1;
+        int width = ceilDiv(imageSize.width() - X_START[i], X_STEP[i]);
+        int height = width == 0 ? 0 : ceilDiv(imageSize.height() - Y_START[i], Y_STEP[i]);
+        return new ImageSize(width, height, imageSize.bytesPerPixel(), width * imageSize.bytesPerPixel());
+    }
+
+    /**
+     * @return number of bytes of the filtered data of all the passes, each scanline being preceded by its filter type
+     */
+    public static long filteredDataLength(ImageSize imageSize) {
+        long length = 0;
+        for (int pass = 1; pass <= PASSES; pass++) {
+            length += passSize(imageSize, pass).filteredDataLength();
+        }
+        return length;
+    }
+
+    /**
+     * Unfilter the filtered data of the reduced image of the pass in place, and copy its pixels to their position in the image
+     *
+     * @param passData  buffer starting with the passSize.height() * (passSize.stride() + 1) bytes of filtered data of the pass
+     * @param imageData destination of the height * stride bytes of the image
+     */
+    public static void deinterlacePass(byte[] passData, ImageSize imageSize, int pass, byte[] imageData) {
+        ImageSize passSize = passSize(imageSize, pass);
+        int passStride = passSize.stride();
+        int bytesPerPixel = imageSize.bytesPerPixel();
+        int xStart = X_START[pass - 1] * bytesPerPixel;
+        int xStep = X_STEP[pass - 1] * bytesPerPixel;
+        int yStart = Y_START[pass - 1];
+        int yStep = Y_STEP[pass - 1];
+        int stride = imageSize.stride();
+        for (int row = 0; row < passSize.height(); row++) {
+            int srcOffset = row * (passStride + 1);
+            int destOffset = row * passStride;
+            // same as UnfilterEngine.unfilter: the write offset is always behind the read offset
+            UnfilterEngine.unfilterScanline(passData[srcOffset],
+                    passData, srcOffset + 1,
+                    passData, destOffset,
+                    row == 0 ? null : passData, destOffset - passStride,
+                    passStride, bytesPerPixel);
+
+            int imageOffset = (yStart + row * yStep) * stride + xStart;
+            if (xStep == bytesPerPixel) {
+                System.arraycopy(passData, destOffset, imageData, imageOffset, passStride);
+            } else {
+                for (int i = 0; i < passStride; i += bytesPerPixel) {
+                    System.arraycopy(passData, destOffset + i, imageData, imageOffset, bytesPerPixel);
+                    imageOffset += xStep;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write into preview the image as known after the given pass: every pixel not decoded yet takes the value of the
+     * closest decoded pixel above and to its left, so that the preview is the image at a coarser resolution
+     * (1/8 in both directions after pass 1, full resolution after pass 7)
+     *
+     * @param imageData image data with the pixels of passes 1 to pass
+     * @param preview   destination of the height * stride bytes of the preview
+     */
+    public static void preview(byte[] imageData, ImageSize imageSize, int pass, byte[] preview) {
+        int blockWidth = BLOCK_WIDTH[pass - 1];
+        int blockHeight = BLOCK_HEIGHT[pass - 1];
+        int bytesPerPixel = imageSize.bytesPerPixel();
+        int blockStride = blockWidth * bytesPerPixel;
+        int stride = imageSize.stride();
+        for (int y = 0; y < imageSize.height(); y++) {
+            int rowOffset = y * stride;
+            if (y % blockHeight != 0) {
+                // same content as the first row of the block
+                System.arraycopy(preview, rowOffset - (y % blockHeight) * stride, preview, rowOffset, stride);
+                continue;
+            }
+            for (int x = 0; x < stride; x += blockStride) {
+                int end = Math.min(x + blockStride, stride);
+                for (int i = x; i < end; i += bytesPerPixel) {
+                    System.arraycopy(imageData, rowOffset + x, preview, rowOffset + i, bytesPerPixel);
+                }
+            }
+        }
+    }
+
+    private static int ceilDiv(int x, int y) {
+        return x <= 0 ? 0 : (x + y - 1) / y;
+    }
+}
@@ -0,0 +1,136 @@
+package fjab.haystack.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Whole-file reads and writes with {@link AsynchronousFileChannel}: no thread waits for the disk, each read or write
+ * being continued by the completion handler of the previous one.<br>
+ * Opening the file and reading its size are blocking calls to the file system, so they are done by a task running on
+ * the given executor rather than on the calling thread
+ */
+public class AsyncFileIO {
+
+    /**
+     * @return future completed with the content of the file, in a buffer with position 0 and limit the size of the file
+     */
+    public static CompletableFuture<ByteBuffer> readAll(Path file, Executor executor) {
+        CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        execute(executor, result, () -> {
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(file, StandardOpenOption.READ);
+            long size;
+            try {
+                size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("File larger than 2 GB: " + file);
+                }
+            } catch (IOException | RuntimeException e) {
+                closeQuietly(channel);
+                throw e;
+            }
+            ByteBuffer content = ByteBuffer.allocate((int) size);
+            result.whenComplete((buffer, e) -> closeQuietly(channel));
+            read(channel, content, result);
+        });
+        return result;
+    }
+
+    private static void read(AsynchronousFileChannel channel, ByteBuffer content, CompletableFuture<ByteBuffer> result) {
+        if (!content.hasRemaining()) {
+            result.complete(content.flip());
+            return;
+        }
+        channel.read(content, content.position(), null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer bytesRead, Void attachment) {
+                if (bytesRead < 0) {
+                    result.completeExceptionally(new EOFException("File is shorter than expected"));
+                } else {
+                    read(channel, content, result);
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * Write the remaining bytes of the buffers one after the other into the file, which is created or truncated
+     *
+     * @return future completed with the number of bytes written
+     */
+    public static CompletableFuture<Long> writeAll(Path file, List<ByteBuffer> buffers, Executor executor) {
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        execute(executor, result, () -> {
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            result.whenComplete((bytesWritten, e) -> closeQuietly(channel));
+            write(channel, buffers.iterator(), null, 0, result);
+        });
+        return result;
+    }
+
+    private static void write(AsynchronousFileChannel channel, Iterator<ByteBuffer> buffers, ByteBuffer buffer, long position,
+                              CompletableFuture<Long> result) {
+        while (buffer == null || !buffer.hasRemaining()) {
+            if (!buffers.hasNext()) {
+                result.complete(position);
+                return;
+            }
+            buffer = buffers.next();
+        }
+        ByteBuffer current = buffer;
+        channel.write(current, position, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer bytesWritten, Void attachment) {
+                write(channel, buffers, current, position + bytesWritten, result);
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * Run the task on the executor, completing the result exceptionally if the task fails or is rejected
+     */
+    private static void execute(Executor executor, CompletableFuture<?> result, IOTask task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (IOException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private interface IOTask {
+        void run() throws IOException;
+    }
+
+    private static void closeQuietly(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
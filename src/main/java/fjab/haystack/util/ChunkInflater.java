@@ -0,0 +1,99 @@
+package fjab.haystack.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Incremental decompression of a zlib stream split across several buffers (typically the data of the IDAT chunks),
+ * reading directly from the buffers, so that the caller decides how much decompressed data is held in memory
+ */
+public class ChunkInflater implements Closeable {
+
+    private final Iterator<ByteBuffer> inputs;
+    private final Inflater inflater;
+    private final boolean ownsInflater;
+    private long bytesInflated;
+
+    public ChunkInflater(List<ByteBuffer> ins) {
+        this(ins, new Inflater(), true);
+    }
+
+    /**
+     * @param inflater inflater in its initial state, which is not ended on {@link #close()}
+     */
+    public ChunkInflater(List<ByteBuffer> ins, Inflater inflater) {
+        this(ins, inflater, false);
+    }
+
+    private ChunkInflater(List<ByteBuffer> ins, Inflater inflater, boolean ownsInflater) {
+        this.inputs = ins.iterator();
+        this.inflater = inflater;
+        this.ownsInflater = ownsInflater;
+    }
+
+    /**
+     * Fill the given region of the array with decompressed data
+     */
+    public void inflateFully(byte[] b, int off, int len) throws IOException {
+        try {
+            int end = off + len;
+            while (off < end) {
+                if (inflater.finished()) {
+                    throw new EOFException("Decompressed data is shorter than expected");
+                } else if (inflater.needsInput()) {
+                    if (!inputs.hasNext()) {
+                        throw new EOFException("Unexpected end of compressed data");
+                    }
+                    inflater.setInput(inputs.next());
+                } else if (inflater.needsDictionary()) {
+                    throw new IOException("Compressed data requires a preset dictionary");
+                } else {
+                    off += inflater.inflate(b, off, end - off);
+                }
+            }
+            bytesInflated += len;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Consume the end of the stream, checking that there is no decompressed data left
+     */
+    public void finish() throws IOException {
+        try {
+            byte[] extra = new byte[1];
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (!inputs.hasNext()) {
+                        throw new EOFException("Unexpected end of compressed data");
+                    }
+                    inflater.setInput(inputs.next());
+                } else if (inflater.needsDictionary()) {
+                    throw new IOException("Compressed data requires a preset dictionary");
+                } else if (inflater.inflate(extra) > 0) {
+                    throw new IOException("Decompressed data is longer than expected");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public long bytesInflated() {
+        return bytesInflated;
+    }
+
+    @Override
+    public void close() {
+        if (ownsInflater) {
+            inflater.end();
+        }
+    }
+}
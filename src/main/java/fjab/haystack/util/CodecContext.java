@@ -0,0 +1,164 @@
+package fjab.haystack.util;
+
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codec state reused across images: an {@link Inflater} and a {@link Deflater} with their native zlib state,
+ * a {@link CRC32} and the scratch buffers holding the intermediate data of decoding and encoding.<br>
+ * Contexts are taken from a bounded pool with {@link #acquire()} and given back with {@link #close()}, so that
+ * in steady state decoding and encoding an image allocates neither native memory nor intermediate buffers.
+ * A context must only be used by one thread at a time. Contexts that do not fit in the pool are ended on release,
+ * and {@link #releasePool()} ends the native state of all pooled contexts.<br>
+ * The scratch buffers of all the pooled contexts add up to at most {@link #MAX_RETAINED_BYTES}: a context released
+ * when the pool already holds that much goes back to the pool without its buffers.
+ */
+public final class CodecContext implements AutoCloseable {
+
+    private static final int POOL_CAPACITY = 2 * Runtime.getRuntime().availableProcessors();
+    /**
+     * Scratch buffers larger than this are not kept when the context goes back to the pool,
+     * so that a few very large images do not pin their intermediate data in memory
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024 * 1024;
+    /**
+     * Maximum number of bytes of scratch buffers held by the contexts in the pool, as opposed to the contexts in use
+     */
+    public static final long MAX_RETAINED_BYTES = 128L * 1024 * 1024;
+    private static final AtomicLong RETAINED_BYTES = new AtomicLong();
+    /**
+     * Used as a stack, so that the most recently released context, whose buffers are the most likely to be cached, is reused first
+     */
+    private static final BlockingDeque<CodecContext> POOL = new LinkedBlockingDeque<>(POOL_CAPACITY);
+
+    private final Inflater inflater = new Inflater();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final CRC32 checkSum = new CRC32();
+    private byte[] inflateBuffer = new byte[0];
+    private byte[] filterBuffer = new byte[0];
+    private byte[] deflateBuffer = new byte[0];
+    private boolean inUse;
+    // bytes of scratch buffers counted in RETAINED_BYTES while the context is in the pool
+    private long retainedBytes;
+
+    private CodecContext() {
+    }
+
+    /**
+     * @return a context from the pool, or a new one if the pool is empty
+     */
+    public static CodecContext acquire() {
+        CodecContext context = POOL.pollFirst();
+        if (context == null) {
+            context = new CodecContext();
+        } else {
+            RETAINED_BYTES.addAndGet(-context.retainedBytes);
+            context.retainedBytes = 0;
+        }
+        context.inUse = true;
+        return context;
+    }
+
+    /**
+     * End the native state of the contexts currently in the pool
+     */
+    public static void releasePool() {
+        CodecContext context;
+        while ((context = POOL.pollFirst()) != null) {
+            RETAINED_BYTES.addAndGet(-context.retainedBytes);
+            context.end();
+        }
+    }
+
+    /**
+     * @return number of bytes of scratch buffers held by the contexts in the pool
+     */
+    public static long retainedBytes() {
+        return RETAINED_BYTES.get();
+    }
+
+    public Inflater inflater() {
+        return inflater;
+    }
+
+    public Deflater deflater(int level) {
+        return deflater(level, Deflater.DEFAULT_STRATEGY);
+    }
+
+    /**
+     * @param strategy one of {@link Deflater#DEFAULT_STRATEGY}, {@link Deflater#FILTERED} and {@link Deflater#HUFFMAN_ONLY}
+     */
+    public Deflater deflater(int level, int strategy) {
+        deflater.setLevel(level);
+        deflater.setStrategy(strategy);
+        return deflater;
+    }
+
+    public CRC32 checkSum() {
+        return checkSum;
+    }
+
+    /**
+     * @return buffer of at least minLength bytes for the decompressed IDAT data, with undefined content
+     */
+    public byte[] inflateBuffer(int minLength) {
+        if (inflateBuffer.length < minLength) inflateBuffer = new byte[minLength];
+        return inflateBuffer;
+    }
+
+    /**
+     * @return buffer of at least minLength bytes for the filtered image data, with undefined content
+     */
+    public byte[] filterBuffer(int minLength) {
+        if (filterBuffer.length < minLength) filterBuffer = new byte[minLength];
+        return filterBuffer;
+    }
+
+    /**
+     * @return buffer of at least minLength bytes for the compressed IDAT data, with undefined content
+     */
+    public byte[] deflateBuffer(int minLength) {
+        if (deflateBuffer.length < minLength) deflateBuffer = new byte[minLength];
+        return deflateBuffer;
+    }
+
+    /**
+     * Reset the codec state and give the context back to the pool. The context must not be used afterwards
+     */
+    @Override
+    public void close() {
+        if (!inUse) {
+            return;
+        }
+        inUse = false;
+        inflater.reset();
+        deflater.reset();
+        checkSum.reset();
+        if (inflateBuffer.length > MAX_RETAINED_BUFFER_SIZE) inflateBuffer = new byte[0];
+        if (filterBuffer.length > MAX_RETAINED_BUFFER_SIZE) filterBuffer = new byte[0];
+        if (deflateBuffer.length > MAX_RETAINED_BUFFER_SIZE) deflateBuffer = new byte[0];
+        long bytes = (long) inflateBuffer.length + filterBuffer.length + deflateBuffer.length;
+        if (RETAINED_BYTES.addAndGet(bytes) > MAX_RETAINED_BYTES) {
+            RETAINED_BYTES.addAndGet(-bytes);
+            inflateBuffer = new byte[0];
+            filterBuffer = new byte[0];
+            deflateBuffer = new byte[0];
+            bytes = 0;
+        }
+        retainedBytes = bytes;
+        if (!POOL.offerFirst(this)) {
+            RETAINED_BYTES.addAndGet(-bytes);
+            retainedBytes = 0;
+            end();
+        }
+    }
+
+    private void end() {
+        inflater.end();
+        deflater.end();
+    }
+}
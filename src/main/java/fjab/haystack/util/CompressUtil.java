@@ -4,17 +4,59 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.Adler32;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 public class CompressUtil {
+
+    /**
+     * Size of the deflate sliding window: each block of a parallel compression is primed with
+     * this many bytes of the preceding input
+     */
+    public static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final int ADLER_BASE = 65521;
+
     public static byte[] decompress(List<InputStream> ins) throws IOException {
         return new InflaterInputStream(new SequenceInputStream(Collections.enumeration(ins))).readAllBytes();
     }
 
+    /**
+     * Inflate the concatenation of the given buffers directly from them (no intermediate copy of the compressed data)
+     *
+     * @param expectedLength exact length of the decompressed data
+     */
+    public static byte[] inflate(List<ByteBuffer> ins, int expectedLength) throws IOException {
+        byte[] output = new byte[expectedLength];
+        try (ChunkInflater inflater = new ChunkInflater(ins)) {
+            inflater.inflateFully(output, 0, expectedLength);
+            inflater.finish();
+            return output;
+        }
+    }
+
+    /**
+     * Inflate the concatenation of the given buffers into the first expectedLength bytes of output
+     *
+     * @param inflater inflater in its initial state, left to the caller to reset or end
+     */
+    public static void inflate(List<ByteBuffer> ins, byte[] output, int expectedLength, Inflater inflater) throws IOException {
+        try (ChunkInflater chunkInflater = new ChunkInflater(ins, inflater)) {
+            chunkInflater.inflateFully(output, 0, expectedLength);
+            chunkInflater.finish();
+        }
+    }
+
     public static byte[] compress(byte[] input) throws IOException {
         try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
              DeflaterOutputStream dos = new DeflaterOutputStream(bos, new Deflater(Deflater.DEFAULT_COMPRESSION))) {
@@ -24,4 +66,168 @@ public class CompressUtil {
             return bos.toByteArray();
         }
     }
+
+    /**
+     * Compress the first length bytes of input into output as a single zlib stream
+     *
+     * @param deflater deflater in its initial state, left to the caller to reset or end
+     * @param output   buffer of at least {@link #compressBound(int) compressBound(length)} bytes
+     * @return number of bytes written to output
+     */
+    public static int compress(byte[] input, int length, Deflater deflater, byte[] output) {
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+        int outputLength = 0;
+        while (!deflater.finished()) {
+            if (outputLength == output.length) {
+                throw new RuntimeException("Output buffer too small for the compressed data");
+            }
+            outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+        }
+        return outputLength;
+    }
+
+    /**
+     * Upper bound of the size of the zlib stream compressing length bytes, whatever the compression level
+     * (conservative bound of zlib's deflateBound plus header and trailer)
+     */
+    public static int compressBound(int length) {
+        return length + ((length + 7) >> 3) + ((length + 63) >> 6) + 5 + 6;
+    }
+
+    /**
+     * Compress the input into a single zlib stream (<a href="https://www.rfc-editor.org/rfc/rfc1950">RFC 1950</a>),
+     * deflating blocks of the input concurrently (as pigz does).<br>
+     * Each block is primed with the preceding {@link #DICTIONARY_SIZE} bytes as preset dictionary, so that matches
+     * can still reference data of the previous block, and all blocks but the last one end with a sync flush so that
+     * the raw deflate outputs can be concatenated. The Adler-32 checksums of the blocks are combined into the
+     * checksum of the whole input.
+     *
+     * @param blockSize number of input bytes deflated by each task
+     */
+    public static byte[] compress(byte[] input, int level, int blockSize, Executor executor) throws IOException {
+        return compress(input, input.length, level, blockSize, executor);
+    }
+
+    /**
+     * Same as {@link #compress(byte[], int, int, Executor)} over the first inputLength bytes of input
+     */
+    public static byte[] compress(byte[] input, int inputLength, int level, int blockSize, Executor executor) throws IOException {
+        return compress(input, inputLength, level, Deflater.DEFAULT_STRATEGY, blockSize, executor);
+    }
+
+    /**
+     * Same as {@link #compress(byte[], int, int, int, Executor)} with the given deflate strategy
+     */
+    public static byte[] compress(byte[] input, int inputLength, int level, int strategy, int blockSize, Executor executor) throws IOException {
+        int numBlocks = Math.max(1, (int) Math.ceil(inputLength / (double) blockSize));
+        List<CompletableFuture<CompressedBlock>> futures = new ArrayList<>(numBlocks);
+        for (int i = 0; i < numBlocks; i++) {
+            int offset = i * blockSize;
+            int length = Math.min(blockSize, inputLength - offset);
+            boolean lastBlock = i == numBlocks - 1;
+            futures.add(CompletableFuture.supplyAsync(() -> deflateBlock(input, offset, length, level, strategy, lastBlock), executor));
+        }
+
+        try (ByteArrayOutputStream bos = new ByteArrayOutputStream(inputLength / 2 + 64)) {
+            bos.write(zlibHeader(level));
+            long adler = 1;
+            for (CompletableFuture<CompressedBlock> future : futures) {
+                CompressedBlock block = join(future);
+                bos.write(block.data(), 0, block.length());
+                adler = adler32Combine(adler, block.adler(), block.inputLength());
+            }
+            bos.write((int) (adler >>> 24));
+            bos.write((int) (adler >>> 16));
+            bos.write((int) (adler >>> 8));
+            bos.write((int) adler);
+            return bos.toByteArray();
+        }
+    }
+
+    private record CompressedBlock(byte[] data, int length, long adler, int inputLength) {
+    }
+
+    private static CompressedBlock deflateBlock(byte[] input, int offset, int length, int level, int strategy, boolean lastBlock) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setStrategy(strategy);
+            int dictionaryLength = Math.min(offset, DICTIONARY_SIZE);
+            if (dictionaryLength > 0) {
+                deflater.setDictionary(input, offset - dictionaryLength, dictionaryLength);
+            }
+            deflater.setInput(input, offset, length);
+            // worst case expansion of deflate is a few bytes per 16 KB stored block
+            byte[] output = new byte[length + (length >> 10) + 64];
+            int outputLength = 0;
+            if (lastBlock) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    if (outputLength == output.length) output = grow(output);
+                    outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+                }
+            } else {
+                // a sync flush is complete once it leaves room in the output buffer
+                while (true) {
+                    int available = output.length - outputLength;
+                    int n = deflater.deflate(output, outputLength, available, Deflater.SYNC_FLUSH);
+                    outputLength += n;
+                    if (n < available) break;
+                    output = grow(output);
+                }
+            }
+            Adler32 adler32 = new Adler32();
+            adler32.update(input, offset, length);
+            return new CompressedBlock(output, outputLength, adler32.getValue(), length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] grow(byte[] buffer) {
+        byte[] newBuffer = new byte[buffer.length * 2];
+        System.arraycopy(buffer, 0, newBuffer, 0, buffer.length);
+        return newBuffer;
+    }
+
+    /**
+     * CMF (deflate with 32 KB window) and FLG bytes, with FLEVEL mapped from the compression level as zlib does
+     */
+    private static byte[] zlibHeader(int level) {
+        int cmf = 0x78;
+        int flevel;
+        if (level == Deflater.DEFAULT_COMPRESSION || level == 6) flevel = 2;
+        else if (level < 2) flevel = 0;
+        else if (level < 6) flevel = 1;
+        else flevel = 3;
+        int flg = flevel << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        return new byte[]{(byte) cmf, (byte) flg};
+    }
+
+    /**
+     * Adler-32 checksum of the concatenation of two sequences, given their checksums and the length of the second one
+     * (same algorithm as zlib's adler32_combine)
+     */
+    static long adler32Combine(long adler1, long adler2, long length2) {
+        long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+        if (sum2 >= ((long) ADLER_BASE << 1)) sum2 -= ((long) ADLER_BASE << 1);
+        if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+        return sum1 | (sum2 << 16);
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            throw new IOException(e.getCause());
+        }
+    }
 }
@@ -0,0 +1,58 @@
+package fjab.haystack.util;
+
+/**
+ * Scanline kernels of filtering and unfiltering that have no serial dependency along the scanline, or only
+ * between bytes of different pixels, and so can be computed several bytes at a time with SIMD instructions.<br>
+ * {@link #INSTANCE} uses the Vector API when the module jdk.incubator.vector is present (JVM option
+ * {@code --add-modules jdk.incubator.vector}) and falls back to scalar code otherwise. The system property
+ * {@code fjab.haystack.vectorKernels=false} forces the scalar kernels.<br>
+ * See {@link FilterUtil#unfilter} for the naming of the bytes a, b, c and x.
+ */
+interface FilterKernels {
+
+    FilterKernels INSTANCE = load();
+
+    /**
+     * Write the stride filtered bytes of the scanline (without the filter type byte) into dest
+     *
+     * @param prev unfiltered data containing the previous scanline, which must not be null (zeros for the first scanline)
+     */
+    void filter(byte filterType, byte[] src, int srcOffset, byte[] prev, int prevOffset, byte[] dest, int destOffset,
+                int stride, int bytesPerPixel);
+
+    /**
+     * Sum of the absolute values of the filtered bytes, taken as signed values.<br>
+     * Evaluation can stop as soon as the sum reaches the given limit, in which case a value not lower than the limit is returned
+     */
+    long sumAbsDiff(byte filterType, byte[] src, int srcOffset, byte[] prev, int prevOffset, int stride, int bytesPerPixel, long limit);
+
+    /**
+     * Reverse the Up filter. Source and destination can be the same array as long as destOffset <= srcOffset
+     */
+    void unfilterUp(byte[] src, int srcOffset, byte[] dest, int destOffset, byte[] prev, int prevOffset, int stride);
+
+    /**
+     * Reverse the Sub filter of an image with 4 bytes per pixel.
+     * Source and destination can be the same array as long as destOffset <= srcOffset
+     */
+    void unfilterSub4(byte[] src, int srcOffset, byte[] dest, int destOffset, int stride);
+
+    /**
+     * @return true if the kernels use the Vector API
+     */
+    default boolean isVectorized() {
+        return false;
+    }
+
+    private static FilterKernels load() {
+        if (Boolean.parseBoolean(System.getProperty("fjab.haystack.vectorKernels", "true"))
+                && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (FilterKernels) Class.forName("fjab.haystack.util.VectorFilterKernels").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // the scalar kernels give the same results
+            }
+        }
+        return new ScalarFilterKernels();
+    }
+}
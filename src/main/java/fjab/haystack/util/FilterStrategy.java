@@ -0,0 +1,20 @@
+package fjab.haystack.util;
+
+/**
+ * How the encoder chooses the filter type of each scanline
+ * (<a href="https://www.w3.org/TR/png/#12Filter-selection">Filter selection</a>)
+ */
+public enum FilterStrategy {
+    /**
+     * Filter type 0 for every scanline: filtered data are the raw pixels preceded by a zero byte
+     */
+    NONE,
+    /**
+     * Filter type giving the minimum sum of absolute differences, with filtered bytes taken as signed values
+     */
+    MIN_SUM_ABS_DIFF,
+    /**
+     * Filter type whose scanline deflates to the smallest number of bytes
+     */
+    BRUTE_FORCE
+}
@@ -23,6 +23,38 @@ public class FilterUtil {
         }
     }
 
+    /**
+     * Filter each scanline with the filter type chosen by the given strategy
+     */
+    public static byte[] filter(ImageSize imageSize, byte[] imageData, FilterStrategy strategy) throws IOException {
+        if (strategy == FilterStrategy.NONE) {
+            return filter(imageSize, imageData);
+        }
+        return filter(imageSize, imageData, strategy, new byte[imageSize.height() * (imageSize.stride() + 1)]);
+    }
+
+    /**
+     * Filter each scanline with the filter type chosen by the given strategy into the first height * (stride + 1) bytes
+     * of filteredData
+     *
+     * @return filteredData
+     */
+    public static byte[] filter(ImageSize imageSize, byte[] imageData, FilterStrategy strategy, byte[] filteredData) {
+        int height = imageSize.height();
+        int stride = imageSize.stride();
+        try (ScanlineFilter scanlineFilter = new ScanlineFilter(imageSize, strategy)) {
+            for (int scanline_idx = 0; scanline_idx < height; scanline_idx++) {
+                int offset = scanline_idx * stride;
+                scanlineFilter.filterScanline(
+                        imageData, offset,
+                        scanline_idx == 0 ? null : imageData, offset - stride,
+                        filteredData, scanline_idx * (stride + 1)
+                );
+            }
+        }
+        return filteredData;
+    }
+
     /**
      * Filtering concepts (<a href="https://www.w3.org/TR/png/#9Filters">Filters</a>) <br>
      * Named filter bytes (<a href="https://www.w3.org/TR/png/#table-named-filter-bytes">Table: named filter bytes</a>): <br>
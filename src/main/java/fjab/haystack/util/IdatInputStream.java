@@ -0,0 +1,94 @@
+package fjab.haystack.util;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static fjab.haystack.domain.Chunk.IDAT_SIGNATURE;
+
+/**
+ * Stream over the data of consecutive IDAT chunks (<a href="https://www.w3.org/TR/png/#10CompressionOtherIDAT">IDAT</a>),
+ * read from the underlying stream one chunk at a time instead of loading the whole file into memory.<br>
+ * The CRC of each chunk is verified as soon as its last byte has been read.
+ * The stream ends at the first chunk that is not an IDAT chunk.
+ */
+public class IdatInputStream extends InputStream {
+
+    private final DataInputStream in;
+    private final CRC32 checkSum = new CRC32();
+    private int remainingChunkBytes;
+    private boolean endOfIdat;
+
+    /**
+     * @param in                 stream positioned right after the type field of the first IDAT chunk
+     * @param firstChunkLength   length of the data field of the first IDAT chunk
+     */
+    public IdatInputStream(DataInputStream in, int firstChunkLength) {
+        this.in = in;
+        startChunk(firstChunkLength);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextDataAvailable()) {
+            return -1;
+        }
+        int b = in.readUnsignedByte();
+        checkSum.update(b);
+        remainingChunkBytes--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextDataAvailable()) {
+            return -1;
+        }
+        int n = in.read(b, off, Math.min(len, remainingChunkBytes));
+        if (n < 0) {
+            throw new IOException("Unexpected end of file inside IDAT chunk");
+        }
+        checkSum.update(b, off, n);
+        remainingChunkBytes -= n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Move on to the next IDAT chunk if the current one has been consumed
+     *
+     * @return false if there is no more IDAT data
+     */
+    private boolean nextDataAvailable() throws IOException {
+        while (remainingChunkBytes == 0 && !endOfIdat) {
+            int chunkCrc = in.readInt();
+            if ((int) checkSum.getValue() != chunkCrc) {
+                throw new RuntimeException("CRC check failed");
+            }
+            int chunkLength = in.readInt();
+            byte[] chunkType = new byte[4];
+            in.readFully(chunkType);
+            if (Arrays.equals(chunkType, IDAT_SIGNATURE)) {
+                startChunk(chunkLength);
+            } else {
+                endOfIdat = true;
+            }
+        }
+        return !endOfIdat;
+    }
+
+    private void startChunk(int chunkLength) {
+        remainingChunkBytes = chunkLength;
+        checkSum.reset();
+        checkSum.update(IDAT_SIGNATURE);
+    }
+}
@@ -0,0 +1,124 @@
+package fjab.haystack.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+import static fjab.haystack.domain.Chunk.CHUNK_METADATA_LENGTH;
+import static fjab.haystack.domain.Chunk.IDAT_SIGNATURE;
+
+/**
+ * Splits the bytes written to it into IDAT chunks, writing each chunk to the channel as soon as it is full.<br>
+ * Only one chunk is buffered: length, type, data and CRC are laid out in a single buffer, and the CRC is updated
+ * as data is added to the chunk. The buffer grows with the data of the chunk, so that a large chunk size (e.g. to write
+ * a single IDAT chunk) costs memory only if there is that much compressed data.
+ * Closing the stream writes the last chunk but does not close the channel.
+ */
+public class IdatOutputStream extends OutputStream {
+
+    private final WritableByteChannel channel;
+    private static final int INITIAL_CHUNK_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_CHUNK_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+
+    private ByteBuffer chunk;
+    private final int chunkSize;
+    private final CRC32 checkSum = new CRC32();
+    private long bytesWritten;
+    private long writeNanos;
+    private boolean closed;
+
+    public IdatOutputStream(WritableByteChannel channel, int chunkSize) {
+        this.channel = channel;
+        this.chunkSize = Math.min(chunkSize, MAX_CHUNK_BUFFER_SIZE - CHUNK_METADATA_LENGTH);
+        this.chunk = ByteBuffer.allocate(CHUNK_METADATA_LENGTH + Math.min(this.chunkSize, INITIAL_CHUNK_BUFFER_SIZE));
+        startChunk();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, chunkSize - dataLength());
+            if (chunk.remaining() - 4 < n) {
+                grow(dataLength() + n);
+            }
+            chunk.put(b, off, n);
+            checkSum.update(b, off, n);
+            off += n;
+            len -= n;
+            if (dataLength() == chunkSize) {
+                writeChunk();
+            }
+        }
+    }
+
+    /**
+     * Write the last chunk, if it has any data. The channel is left open
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            if (dataLength() > 0) {
+                writeChunk();
+            }
+        }
+    }
+
+    /**
+     * @return number of bytes written to the channel, metadata of the chunks included
+     */
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return time spent writing to the channel
+     */
+    public long writeNanos() {
+        return writeNanos;
+    }
+
+    private int dataLength() {
+        return chunk.position() - 8;
+    }
+
+    /**
+     * Make room for minDataLength bytes of data and the CRC
+     */
+    private void grow(int minDataLength) {
+        long capacity = Math.max(2L * chunk.capacity(), (long) CHUNK_METADATA_LENGTH + minDataLength);
+        ByteBuffer larger = ByteBuffer.allocate((int) Math.min(capacity, CHUNK_METADATA_LENGTH + (long) chunkSize));
+        chunk.flip();
+        larger.put(chunk);
+        chunk = larger;
+    }
+
+    private void startChunk() {
+        chunk.clear();
+        chunk.position(8);
+        checkSum.reset();
+        checkSum.update(IDAT_SIGNATURE);
+    }
+
+    private void writeChunk() throws IOException {
+        long start = System.nanoTime();
+        int dataLength = dataLength();
+        chunk.putInt(0, dataLength);
+        chunk.put(4, IDAT_SIGNATURE);
+        chunk.putInt((int) checkSum.getValue());
+        chunk.flip();
+        while (chunk.hasRemaining()) {
+            channel.write(chunk);
+        }
+        bytesWritten += CHUNK_METADATA_LENGTH + dataLength;
+        writeNanos += System.nanoTime() - start;
+        startChunk();
+    }
+}
@@ -0,0 +1,94 @@
+package fjab.haystack.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only memory mapping of a file, giving access to regions of the file as {@link ByteBuffer} slices
+ * without copying them to the heap.<br>
+ * A single {@link java.nio.MappedByteBuffer} cannot exceed 2 GB, so files larger than that are mapped through a window
+ * that is moved whenever a region outside of it is requested. Slices remain valid after the window has moved
+ * and after the file has been closed, and keep the mapping alive: reading a slice after the file has been truncated
+ * crashes the JVM or throws {@link InternalError}, so data kept beyond decoding must be copied to the heap.<br>
+ * The content of a file already read into memory (e.g. by {@link AsyncFileIO#readAll}) can be accessed the same way.
+ */
+public class MappedFile implements Closeable {
+
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+    private final long size;
+    private ByteBuffer window;
+    private long windowStart;
+
+    private MappedFile(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    private MappedFile(ByteBuffer content) {
+        this.channel = null;
+        this.size = content.remaining();
+        this.window = content.slice();
+    }
+
+    public static MappedFile open(String sourceFile) throws IOException {
+        return new MappedFile(FileChannel.open(Paths.get(sourceFile), StandardOpenOption.READ));
+    }
+
+    /**
+     * @param content content of the file, from its position to its limit
+     */
+    public static MappedFile wrap(ByteBuffer content) {
+        return new MappedFile(content);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return read-only buffer over the given region of the file, with position 0 and limit length
+     */
+    public ByteBuffer slice(long position, int length) throws IOException {
+        int index = mapRegion(position, length);
+        return window.slice(index, length);
+    }
+
+    public int getInt(long position) throws IOException {
+        int index = mapRegion(position, 4);
+        return window.getInt(index);
+    }
+
+    /**
+     * Make sure the window covers the given region
+     *
+     * @return index of the region in the window
+     */
+    private int mapRegion(long position, int length) throws IOException {
+        if (position < 0 || length < 0 || position + length > size) {
+            throw new IOException("Region [" + position + ", " + (position + length) + ") is outside of the file");
+        }
+        if (window == null || position < windowStart || position + length > windowStart + window.capacity()) {
+            if (size <= Integer.MAX_VALUE) {
+                windowStart = 0;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Math.max(WINDOW_SIZE, length), size - position));
+            }
+        }
+        return (int) (position - windowStart);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
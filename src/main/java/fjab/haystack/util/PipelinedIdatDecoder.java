@@ -0,0 +1,214 @@
+package fjab.haystack.util;
+
+import fjab.haystack.domain.ImageSize;
+import fjab.haystack.observer.Stage;
+import fjab.haystack.observer.StageObserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Decoding of the IDAT data with inflation and unfiltering overlapped on two threads.<br>
+ * A task submitted to the executor inflates the filtered scanlines into a bounded ring of row blocks,
+ * while the calling thread unfilters each block into the image as soon as it is full.
+ * The inflating task blocks when all the blocks of the ring are waiting to be unfiltered, and is woken up as soon as
+ * decoding ends or fails.<br>
+ * An executor running the task on the calling thread (e.g. {@code Runnable::run}) would block the inflating task
+ * forever, so in that case the blocks are inflated and unfiltered in turn on the calling thread.<br>
+ * The inflater is taken from a {@link CodecContext} acquired by the thread inflating the data.
+ * The INFLATE stage is reported to the observer from that thread, which is not the calling thread when the
+ * executor runs the task on another thread.
+ */
+public class PipelinedIdatDecoder {
+
+    private static final int BLOCK_SIZE = 256 * 1024;
+    private static final int RING_SIZE = 4;
+    private static final byte[] END_OF_DATA = new byte[0];
+    private static final byte[] CANCELLED = new byte[0];
+
+    private final List<ByteBuffer> idatData;
+    private final ImageSize imageSize;
+    private final StageObserver observer;
+    private final int rowsPerBlock;
+    // one more slot for CANCELLED, so that it can always be added
+    private final BlockingQueue<byte[]> freeBlocks = new ArrayBlockingQueue<>(RING_SIZE + 1);
+    private final BlockingQueue<byte[]> filledBlocks = new ArrayBlockingQueue<>(RING_SIZE + 1);
+    private volatile Throwable inflateFailure;
+    private volatile boolean cancelled;
+    private boolean runsOnCallingThread;
+
+    private PipelinedIdatDecoder(List<ByteBuffer> idatData, ImageSize imageSize, StageObserver observer) {
+        this.idatData = idatData;
+        this.imageSize = imageSize;
+        this.observer = observer;
+        int filteredStride = imageSize.stride() + 1;
+        this.rowsPerBlock = Math.max(1, BLOCK_SIZE / filteredStride);
+        for (int i = 0; i < RING_SIZE; i++) {
+            freeBlocks.add(new byte[rowsPerBlock * filteredStride]);
+        }
+    }
+
+    /**
+     * @param inflateExecutor executor running the inflating task, on another thread for inflation and unfiltering
+     *                        to overlap
+     * @return the unfiltered image data
+     */
+    public static byte[] decode(List<ByteBuffer> idatData, ImageSize imageSize, Executor inflateExecutor, StageObserver observer) throws IOException {
+        return new PipelinedIdatDecoder(idatData, imageSize, observer).decode(inflateExecutor);
+    }
+
+    private byte[] decode(Executor inflateExecutor) throws IOException {
+        Thread callingThread = Thread.currentThread();
+        inflateExecutor.execute(() -> {
+            if (Thread.currentThread() == callingThread) {
+                runsOnCallingThread = true;
+            } else {
+                inflate();
+            }
+        });
+        if (runsOnCallingThread) {
+            return decodeSequentially();
+        }
+        try {
+            return unfilter();
+        } finally {
+            cancelled = true;
+            freeBlocks.add(CANCELLED);
+        }
+    }
+
+    private void inflate() {
+        int height = imageSize.height();
+        int filteredStride = imageSize.stride() + 1;
+        long busyNanos = 0;
+        try (CodecContext context = CodecContext.acquire();
+             ChunkInflater inflater = new ChunkInflater(idatData, context.inflater())) {
+            for (int row = 0; row < height; row += rowsPerBlock) {
+                byte[] block = takeFreeBlock();
+                if (block == null) {
+                    return;
+                }
+                long start = System.nanoTime();
+                inflater.inflateFully(block, 0, Math.min(rowsPerBlock, height - row) * filteredStride);
+                busyNanos += System.nanoTime() - start;
+                filledBlocks.add(block);
+            }
+            long start = System.nanoTime();
+            inflater.finish();
+            busyNanos += System.nanoTime() - start;
+            observer.stageCompleted(Stage.INFLATE, inflater.bytesInflated(), busyNanos);
+        } catch (Throwable e) {
+            inflateFailure = e;
+        }
+        filledBlocks.add(END_OF_DATA);
+    }
+
+    /**
+     * @return a block to inflate into, or null if decoding has been cancelled
+     */
+    private byte[] takeFreeBlock() throws InterruptedException {
+        if (cancelled) return null;
+        byte[] block = freeBlocks.take();
+        return block == CANCELLED ? null : block;
+    }
+
+    /**
+     * Inflate and unfilter the blocks in turn on the calling thread, through a single block
+     */
+    private byte[] decodeSequentially() throws IOException {
+        int height = imageSize.height();
+        int filteredStride = imageSize.stride() + 1;
+        byte[] unfilteredData = new byte[height * imageSize.stride()];
+        byte[] block = freeBlocks.poll();
+        long inflateNanos = 0;
+        long unfilterNanos = 0;
+        try (CodecContext context = CodecContext.acquire();
+             ChunkInflater inflater = new ChunkInflater(idatData, context.inflater())) {
+            for (int row = 0; row < height; row += rowsPerBlock) {
+                int blockRows = Math.min(rowsPerBlock, height - row);
+                long start = System.nanoTime();
+                inflater.inflateFully(block, 0, blockRows * filteredStride);
+                long inflated = System.nanoTime();
+                unfilterBlock(block, row, blockRows, unfilteredData);
+                inflateNanos += inflated - start;
+                unfilterNanos += System.nanoTime() - inflated;
+            }
+            long start = System.nanoTime();
+            inflater.finish();
+            inflateNanos += System.nanoTime() - start;
+            observer.stageCompleted(Stage.INFLATE, inflater.bytesInflated(), inflateNanos);
+        }
+        observer.stageCompleted(Stage.UNFILTER, unfilteredData.length, unfilterNanos);
+        observer.stageOutput(Stage.UNFILTER, unfilteredData, unfilteredData.length);
+        return unfilteredData;
+    }
+
+    private byte[] unfilter() throws IOException {
+        int height = imageSize.height();
+        byte[] unfilteredData = new byte[height * imageSize.stride()];
+        long busyNanos = 0;
+        for (int row = 0; row < height; ) {
+            byte[] block = takeFilledBlock();
+            long start = System.nanoTime();
+            int blockRows = Math.min(rowsPerBlock, height - row);
+            unfilterBlock(block, row, blockRows, unfilteredData);
+            row += blockRows;
+            busyNanos += System.nanoTime() - start;
+            freeBlocks.add(block);
+        }
+        // wait for the end of the stream to be checked
+        takeFilledBlockOrEnd();
+        if (inflateFailure != null) {
+            throwInflateFailure();
+        }
+        observer.stageCompleted(Stage.UNFILTER, unfilteredData.length, busyNanos);
+        observer.stageOutput(Stage.UNFILTER, unfilteredData, unfilteredData.length);
+        return unfilteredData;
+    }
+
+    /**
+     * Unfilter the blockRows filtered scanlines of the block into the image, from row firstRow
+     */
+    private void unfilterBlock(byte[] block, int firstRow, int blockRows, byte[] unfilteredData) {
+        int stride = imageSize.stride();
+        int filteredStride = stride + 1;
+        for (int i = 0, row = firstRow; i < blockRows; i++, row++) {
+            int srcOffset = i * filteredStride;
+            UnfilterEngine.unfilterScanline(block[srcOffset],
+                    block, srcOffset + 1,
+                    unfilteredData, row * stride,
+                    row == 0 ? null : unfilteredData, (row - 1) * stride,
+                    stride, imageSize.bytesPerPixel());
+        }
+    }
+
+    private byte[] takeFilledBlock() throws IOException {
+        byte[] block = takeFilledBlockOrEnd();
+        if (block == END_OF_DATA) {
+            throwInflateFailure();
+        }
+        return block;
+    }
+
+    private byte[] takeFilledBlockOrEnd() throws IOException {
+        try {
+            return filledBlocks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for inflated data");
+        }
+    }
+
+    private void throwInflateFailure() throws IOException {
+        Throwable failure = inflateFailure;
+        if (failure instanceof IOException e) throw e;
+        if (failure instanceof RuntimeException e) throw e;
+        if (failure instanceof Error e) throw e;
+        throw new IOException(failure);
+    }
+}
@@ -0,0 +1,165 @@
+package fjab.haystack.util;
+
+/**
+ * Kernels processing one byte at a time. The range methods are also used by {@link VectorFilterKernels}
+ * for the bytes that do not fill a whole vector
+ */
+class ScalarFilterKernels implements FilterKernels {
+
+    @Override
+    public void filter(byte filterType, byte[] src, int srcOffset, byte[] prev, int prevOffset, byte[] dest, int destOffset,
+                       int stride, int bytesPerPixel) {
+        filterRange(filterType, src, srcOffset, prev, prevOffset, dest, destOffset, 0, stride, bytesPerPixel);
+    }
+
+    @Override
+    public long sumAbsDiff(byte filterType, byte[] src, int srcOffset, byte[] prev, int prevOffset, int stride, int bytesPerPixel, long limit) {
+        return sumAbsDiffRange(filterType, src, srcOffset, prev, prevOffset, 0, stride, bytesPerPixel, limit);
+    }
+
+    @Override
+    public void unfilterUp(byte[] src, int srcOffset, byte[] dest, int destOffset, byte[] prev, int prevOffset, int stride) {
+        for (int i = 0; i < stride; i++) {
+            dest[destOffset + i] = (byte) (src[srcOffset + i] + prev[prevOffset + i]);
+        }
+    }
+
+    @Override
+    public void unfilterSub4(byte[] src, int srcOffset, byte[] dest, int destOffset, int stride) {
+        unfilterSub4Range(src, srcOffset, dest, destOffset, 0, stride);
+    }
+
+    /**
+     * Filter the bytes [from, to) of the scanline
+     */
+    static void filterRange(byte filterType, byte[] src, int s, byte[] prev, int p, byte[] dest, int d,
+                            int from, int to, int bpp) {
+        int i = from;
+        switch (filterType) {
+            case 0 -> System.arraycopy(src, s + from, dest, d + from, to - from);
+            case 1 -> {
+                for (; i < Math.min(bpp, to); i++) {
+                    dest[d + i] = src[s + i];
+                }
+                for (; i < to; i++) {
+                    dest[d + i] = (byte) (src[s + i] - src[s + i - bpp]);
+                }
+            }
+            case 2 -> {
+                for (; i < to; i++) {
+                    dest[d + i] = (byte) (src[s + i] - prev[p + i]);
+                }
+            }
+            case 3 -> {
+                for (; i < Math.min(bpp, to); i++) {
+                    dest[d + i] = (byte) (src[s + i] - ((prev[p + i] & 0xFF) >>> 1));
+                }
+                for (; i < to; i++) {
+                    int a = src[s + i - bpp] & 0xFF;
+                    int b = prev[p + i] & 0xFF;
+                    dest[d + i] = (byte) (src[s + i] - ((a + b) >>> 1));
+                }
+            }
+            case 4 -> {
+                for (; i < Math.min(bpp, to); i++) {
+                    dest[d + i] = (byte) (src[s + i] - prev[p + i]);
+                }
+                for (; i < to; i++) {
+                    int a = src[s + i - bpp] & 0xFF;
+                    int b = prev[p + i] & 0xFF;
+                    int c = prev[p + i - bpp] & 0xFF;
+                    dest[d + i] = (byte) (src[s + i] - paethPredictor(a, b, c));
+                }
+            }
+            default -> throw new RuntimeException("Unsupported filter type: " + filterType);
+        }
+    }
+
+    /**
+     * Sum of the absolute values of the bytes [from, to) of the filtered scanline, stopping as soon as it reaches the limit
+     */
+    static long sumAbsDiffRange(byte filterType, byte[] src, int s, byte[] prev, int p, int from, int to, int bpp, long limit) {
+        long sum = 0;
+        int i = from;
+        switch (filterType) {
+            case 0 -> {
+                for (; i < to && sum < limit; i++) {
+                    sum += Math.abs(src[s + i]);
+                }
+            }
+            case 1 -> {
+                for (; i < Math.min(bpp, to); i++) {
+                    sum += Math.abs(src[s + i]);
+                }
+                for (; i < to && sum < limit; i++) {
+                    sum += Math.abs((byte) (src[s + i] - src[s + i - bpp]));
+                }
+            }
+            case 2 -> {
+                for (; i < to && sum < limit; i++) {
+                    sum += Math.abs((byte) (src[s + i] - prev[p + i]));
+                }
+            }
+            case 3 -> {
+                for (; i < Math.min(bpp, to); i++) {
+                    sum += Math.abs((byte) (src[s + i] - ((prev[p + i] & 0xFF) >>> 1)));
+                }
+                for (; i < to && sum < limit; i++) {
+                    int a = src[s + i - bpp] & 0xFF;
+                    int b = prev[p + i] & 0xFF;
+                    sum += Math.abs((byte) (src[s + i] - ((a + b) >>> 1)));
+                }
+            }
+            case 4 -> {
+                for (; i < Math.min(bpp, to); i++) {
+                    sum += Math.abs((byte) (src[s + i] - prev[p + i]));
+                }
+                for (; i < to && sum < limit; i++) {
+                    int a = src[s + i - bpp] & 0xFF;
+                    int b = prev[p + i] & 0xFF;
+                    int c = prev[p + i - bpp] & 0xFF;
+                    sum += Math.abs((byte) (src[s + i] - paethPredictor(a, b, c)));
+                }
+            }
+            default -> throw new RuntimeException("Unsupported filter type: " + filterType);
+        }
+        return sum;
+    }
+
+    /**
+     * Reverse the Sub filter on the bytes [from, to) of a scanline with 4 bytes per pixel,
+     * the bytes before from having already been unfiltered into dest
+     */
+    static void unfilterSub4Range(byte[] src, int s, byte[] dest, int d, int from, int to) {
+        int a0 = 0, a1 = 0, a2 = 0, a3 = 0;
+        if (from > 0) {
+            a0 = dest[d + from - 4];
+            a1 = dest[d + from - 3];
+            a2 = dest[d + from - 2];
+            a3 = dest[d + from - 1];
+        }
+        for (int i = from; i < to; i += 4) {
+            a0 += src[s + i];
+            a1 += src[s + i + 1];
+            a2 += src[s + i + 2];
+            a3 += src[s + i + 3];
+            dest[d + i] = (byte) a0;
+            dest[d + i + 1] = (byte) a1;
+            dest[d + i + 2] = (byte) a2;
+            dest[d + i + 3] = (byte) a3;
+        }
+    }
+
+    /**
+     * Same predictor as the one used when unfiltering, with bytes already converted to unsigned int values
+     */
+    static int paethPredictor(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        if (pb <= pc) return b;
+        return c;
+    }
+}
@@ -0,0 +1,121 @@
+package fjab.haystack.util;
+
+import fjab.haystack.domain.ImageSize;
+
+import java.util.zip.Deflater;
+
+/**
+ * Filters scanlines one at a time according to a {@link FilterStrategy}.<br>
+ * All buffers needed to evaluate the candidate filter types are allocated once per image,
+ * so no memory is allocated per scanline. See {@link FilterUtil#unfilter} for the naming of the bytes a, b, c and x.
+ */
+public class ScanlineFilter implements AutoCloseable {
+
+    private static final int NUM_FILTER_TYPES = 5;
+    private static final FilterKernels KERNELS = FilterKernels.INSTANCE;
+
+    private final FilterStrategy strategy;
+    private final int stride;
+    private final int bytesPerPixel;
+    private final byte[] zeroRow;
+    private final byte[][] candidates;
+    private final byte[] deflateScratch;
+    private final Deflater deflater;
+
+    public ScanlineFilter(ImageSize imageSize, FilterStrategy strategy) {
+        this.strategy = strategy;
+        this.stride = imageSize.stride();
+        this.bytesPerPixel = imageSize.bytesPerPixel();
+        this.zeroRow = new byte[stride];
+        if (strategy == FilterStrategy.BRUTE_FORCE) {
+            this.candidates = new byte[NUM_FILTER_TYPES][stride + 1];
+            this.deflateScratch = new byte[stride + 64];
+            this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        } else {
+            this.candidates = null;
+            this.deflateScratch = null;
+            this.deflater = null;
+        }
+    }
+
+    /**
+     * Write the filter type byte followed by the filtered scanline (stride + 1 bytes) into dest
+     *
+     * @param src        unfiltered image data
+     * @param srcOffset  offset of the scanline to filter in src
+     * @param prev       unfiltered data containing the previous scanline, or null for the first scanline
+     * @param prevOffset offset of the previous scanline in prev
+     * @return the filter type that has been applied
+     */
+    public byte filterScanline(byte[] src, int srcOffset, byte[] prev, int prevOffset, byte[] dest, int destOffset) {
+        if (prev == null) {
+            prev = zeroRow;
+            prevOffset = 0;
+        }
+        byte filterType = switch (strategy) {
+            case NONE -> 0;
+            case MIN_SUM_ABS_DIFF -> minSumAbsDiffFilterType(src, srcOffset, prev, prevOffset);
+            case BRUTE_FORCE -> bruteForceFilterType(src, srcOffset, prev, prevOffset);
+        };
+        if (candidates != null) {
+            System.arraycopy(candidates[filterType], 0, dest, destOffset, stride + 1);
+        } else {
+            applyFilter(filterType, src, srcOffset, prev, prevOffset, dest, destOffset);
+        }
+        return filterType;
+    }
+
+    @Override
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+
+    private byte minSumAbsDiffFilterType(byte[] src, int srcOffset, byte[] prev, int prevOffset) {
+        byte bestFilterType = 0;
+        long bestSum = Long.MAX_VALUE;
+        for (byte filterType = 0; filterType < NUM_FILTER_TYPES; filterType++) {
+            long sum = sumAbsDiff(filterType, src, srcOffset, prev, prevOffset, bestSum);
+            if (sum < bestSum) {
+                bestSum = sum;
+                bestFilterType = filterType;
+            }
+        }
+        return bestFilterType;
+    }
+
+    private byte bruteForceFilterType(byte[] src, int srcOffset, byte[] prev, int prevOffset) {
+        byte bestFilterType = 0;
+        long bestSize = Long.MAX_VALUE;
+        for (byte filterType = 0; filterType < NUM_FILTER_TYPES; filterType++) {
+            byte[] candidate = candidates[filterType];
+            applyFilter(filterType, src, srcOffset, prev, prevOffset, candidate, 0);
+            deflater.reset();
+            deflater.setInput(candidate);
+            deflater.finish();
+            long size = 0;
+            while (!deflater.finished() && size < bestSize) {
+                size += deflater.deflate(deflateScratch);
+            }
+            if (size < bestSize) {
+                bestSize = size;
+                bestFilterType = filterType;
+            }
+        }
+        return bestFilterType;
+    }
+
+    /**
+     * Sum of the absolute values of the filtered bytes, taken as signed values. <br>
+     * Evaluation stops as soon as the sum reaches the given limit, since the filter type cannot be the best one
+     */
+    private long sumAbsDiff(byte filterType, byte[] src, int srcOffset, byte[] prev, int prevOffset, long limit) {
+        return KERNELS.sumAbsDiff(filterType, src, srcOffset, prev, prevOffset, stride, bytesPerPixel, limit);
+    }
+
+    private void applyFilter(byte filterType, byte[] src, int srcOffset, byte[] prev, int prevOffset, byte[] dest, int destOffset) {
+        dest[destOffset] = filterType;
+        KERNELS.filter(filterType, src, srcOffset, prev, prevOffset, dest, destOffset + 1, stride, bytesPerPixel);
+    }
+}
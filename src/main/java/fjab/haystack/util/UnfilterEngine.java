@@ -0,0 +1,245 @@
+package fjab.haystack.util;
+
+import fjab.haystack.domain.ImageSize;
+
+/**
+ * Allocation-free reconstruction of filtered scanlines (see {@link FilterUtil#unfilter} for the naming of the bytes a, b, c and x).<br>
+ * Compared to {@link FilterUtil#unfilter}:<br>
+ * - scanlines are unfiltered in place in the decompressed buffer, no array is allocated per scanline <br>
+ * - the first pixel of a scanline (no byte a) and the first scanline (no bytes b and c) are handled by separate loops,
+ * so the steady-state loops have no boundary checks <br>
+ * - the Sub, Average and Paeth filters have kernels specialized for 3 and 4 bytes per pixel,
+ * carrying a and c from one pixel to the next in local variables <br>
+ * - the Paeth predictor is computed without branches <br>
+ * - Up, and Sub with 4 bytes per pixel, use the {@link FilterKernels} vectorized with the Vector API when it is available
+ */
+public class UnfilterEngine {
+
+    private static final FilterKernels KERNELS = FilterKernels.INSTANCE;
+
+    /**
+     * Unfilter the decompressed IDAT data in place. The unfiltered image data is left at the start of the array,
+     * which is not copied to an array of the exact length
+     *
+     * @param decompressedIdatData buffer starting with the height * (stride + 1) bytes of decompressed data
+     * @return number of bytes of unfiltered image data at the start of the buffer (height * stride)
+     */
+    public static int unfilter(byte[] decompressedIdatData, ImageSize imageSize) {
+        int height = imageSize.height();
+        int stride = imageSize.stride();
+        int bytesPerPixel = imageSize.bytesPerPixel();
+        if (decompressedIdatData.length < height * (stride + 1)) {
+            throw new RuntimeException("Decompressed data length does not match expected length");
+        }
+        /*
+            Scanline i is read from offset i * (stride + 1) + 1 and written to offset i * stride.
+            The write offset is always behind the read offset, so every filtered byte is read before being overwritten
+         */
+        for (int scanline_idx = 0; scanline_idx < height; scanline_idx++) {
+            int srcOffset = scanline_idx * (stride + 1);
+            int destOffset = scanline_idx * stride;
+            unfilterScanline(decompressedIdatData[srcOffset],
+                    decompressedIdatData, srcOffset + 1,
+                    decompressedIdatData, destOffset,
+                    scanline_idx == 0 ? null : decompressedIdatData, destOffset - stride,
+                    stride, bytesPerPixel);
+        }
+        return height * stride;
+    }
+
+    /**
+     * Unfilter the decompressed IDAT data into a separate array, leaving the decompressed data untouched
+     *
+     * @param decompressedIdatData buffer starting with the height * (stride + 1) bytes of decompressed data
+     * @param unfilteredData       destination of the height * stride bytes of unfiltered data
+     */
+    public static void unfilter(byte[] decompressedIdatData, ImageSize imageSize, byte[] unfilteredData) {
+        int height = imageSize.height();
+        int stride = imageSize.stride();
+        int bytesPerPixel = imageSize.bytesPerPixel();
+        for (int scanline_idx = 0; scanline_idx < height; scanline_idx++) {
+            int srcOffset = scanline_idx * (stride + 1);
+            int destOffset = scanline_idx * stride;
+            unfilterScanline(decompressedIdatData[srcOffset],
+                    decompressedIdatData, srcOffset + 1,
+                    unfilteredData, destOffset,
+                    scanline_idx == 0 ? null : unfilteredData, destOffset - stride,
+                    stride, bytesPerPixel);
+        }
+    }
+
+    /**
+     * Unfilter one scanline. Source and destination can be the same array as long as destOffset <= srcOffset
+     *
+     * @param prev       reconstructed data containing the previous scanline, or null for the first scanline
+     * @param prevOffset offset of the previous scanline in prev
+     */
+    public static void unfilterScanline(byte filterType, byte[] src, int srcOffset, byte[] dest, int destOffset,
+                                        byte[] prev, int prevOffset, int stride, int bytesPerPixel) {
+        switch (filterType) {
+            case 0 -> System.arraycopy(src, srcOffset, dest, destOffset, stride); //None
+            case 1 -> sub(src, srcOffset, dest, destOffset, stride, bytesPerPixel);
+            case 2 -> {
+                if (prev == null) System.arraycopy(src, srcOffset, dest, destOffset, stride);
+                else KERNELS.unfilterUp(src, srcOffset, dest, destOffset, prev, prevOffset, stride);
+            }
+            case 3 -> {
+                if (prev == null) averageFirstScanline(src, srcOffset, dest, destOffset, stride, bytesPerPixel);
+                else if (bytesPerPixel == 4) average4(src, srcOffset, dest, destOffset, prev, prevOffset, stride);
+                else if (bytesPerPixel == 3) average3(src, srcOffset, dest, destOffset, prev, prevOffset, stride);
+                else average(src, srcOffset, dest, destOffset, prev, prevOffset, stride, bytesPerPixel);
+            }
+            case 4 -> {
+                // with b = c = 0 the Paeth predictor is always a
+                if (prev == null) sub(src, srcOffset, dest, destOffset, stride, bytesPerPixel);
+                else if (bytesPerPixel == 4) paeth4(src, srcOffset, dest, destOffset, prev, prevOffset, stride);
+                else if (bytesPerPixel == 3) paeth3(src, srcOffset, dest, destOffset, prev, prevOffset, stride);
+                else paeth(src, srcOffset, dest, destOffset, prev, prevOffset, stride, bytesPerPixel);
+            }
+            default -> throw new RuntimeException("Unsupported filter type: " + filterType);
+        }
+    }
+
+    private static void sub(byte[] src, int s, byte[] dest, int d, int stride, int bpp) {
+        if (bpp == 4) {
+            KERNELS.unfilterSub4(src, s, dest, d, stride);
+        } else if (bpp == 3) {
+            int a0 = src[s], a1 = src[s + 1], a2 = src[s + 2];
+            dest[d] = (byte) a0;
+            dest[d + 1] = (byte) a1;
+            dest[d + 2] = (byte) a2;
+            for (int i = 3; i < stride; i += 3) {
+                a0 += src[s + i];
+                a1 += src[s + i + 1];
+                a2 += src[s + i + 2];
+                dest[d + i] = (byte) a0;
+                dest[d + i + 1] = (byte) a1;
+                dest[d + i + 2] = (byte) a2;
+            }
+        } else {
+            System.arraycopy(src, s, dest, d, bpp);
+            for (int i = bpp; i < stride; i++) {
+                dest[d + i] = (byte) (src[s + i] + dest[d + i - bpp]);
+            }
+        }
+    }
+
+    private static void averageFirstScanline(byte[] src, int s, byte[] dest, int d, int stride, int bpp) {
+        System.arraycopy(src, s, dest, d, bpp);
+        for (int i = bpp; i < stride; i++) {
+            dest[d + i] = (byte) (src[s + i] + ((dest[d + i - bpp] & 0xFF) >>> 1));
+        }
+    }
+
+    private static void average(byte[] src, int s, byte[] dest, int d, byte[] prev, int p, int stride, int bpp) {
+        for (int i = 0; i < bpp; i++) {
+            dest[d + i] = (byte) (src[s + i] + ((prev[p + i] & 0xFF) >>> 1));
+        }
+        for (int i = bpp; i < stride; i++) {
+            dest[d + i] = (byte) (src[s + i] + (((dest[d + i - bpp] & 0xFF) + (prev[p + i] & 0xFF)) >>> 1));
+        }
+    }
+
+    private static void average4(byte[] src, int s, byte[] dest, int d, byte[] prev, int p, int stride) {
+        int a0 = 0, a1 = 0, a2 = 0, a3 = 0;
+        for (int i = 0; i < stride; i += 4) {
+            a0 = (src[s + i] + ((a0 + (prev[p + i] & 0xFF)) >>> 1)) & 0xFF;
+            a1 = (src[s + i + 1] + ((a1 + (prev[p + i + 1] & 0xFF)) >>> 1)) & 0xFF;
+            a2 = (src[s + i + 2] + ((a2 + (prev[p + i + 2] & 0xFF)) >>> 1)) & 0xFF;
+            a3 = (src[s + i + 3] + ((a3 + (prev[p + i + 3] & 0xFF)) >>> 1)) & 0xFF;
+            dest[d + i] = (byte) a0;
+            dest[d + i + 1] = (byte) a1;
+            dest[d + i + 2] = (byte) a2;
+            dest[d + i + 3] = (byte) a3;
+        }
+    }
+
+    private static void average3(byte[] src, int s, byte[] dest, int d, byte[] prev, int p, int stride) {
+        int a0 = 0, a1 = 0, a2 = 0;
+        for (int i = 0; i < stride; i += 3) {
+            a0 = (src[s + i] + ((a0 + (prev[p + i] & 0xFF)) >>> 1)) & 0xFF;
+            a1 = (src[s + i + 1] + ((a1 + (prev[p + i + 1] & 0xFF)) >>> 1)) & 0xFF;
+            a2 = (src[s + i + 2] + ((a2 + (prev[p + i + 2] & 0xFF)) >>> 1)) & 0xFF;
+            dest[d + i] = (byte) a0;
+            dest[d + i + 1] = (byte) a1;
+            dest[d + i + 2] = (byte) a2;
+        }
+    }
+
+    private static void paeth(byte[] src, int s, byte[] dest, int d, byte[] prev, int p, int stride, int bpp) {
+        for (int i = 0; i < bpp; i++) {
+            // a = c = 0, so the predictor is b
+            dest[d + i] = (byte) (src[s + i] + prev[p + i]);
+        }
+        for (int i = bpp; i < stride; i++) {
+            int a = dest[d + i - bpp] & 0xFF;
+            int b = prev[p + i] & 0xFF;
+            int c = prev[p + i - bpp] & 0xFF;
+            dest[d + i] = (byte) (src[s + i] + paethPredictor(a, b, c));
+        }
+    }
+
+    private static void paeth4(byte[] src, int s, byte[] dest, int d, byte[] prev, int p, int stride) {
+        // for the first pixel a = c = 0, which gives the same result as the rules of the first pixel
+        int a0 = 0, a1 = 0, a2 = 0, a3 = 0;
+        int c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+        for (int i = 0; i < stride; i += 4) {
+            int b0 = prev[p + i] & 0xFF;
+            int b1 = prev[p + i + 1] & 0xFF;
+            int b2 = prev[p + i + 2] & 0xFF;
+            int b3 = prev[p + i + 3] & 0xFF;
+            a0 = (src[s + i] + paethPredictor(a0, b0, c0)) & 0xFF;
+            a1 = (src[s + i + 1] + paethPredictor(a1, b1, c1)) & 0xFF;
+            a2 = (src[s + i + 2] + paethPredictor(a2, b2, c2)) & 0xFF;
+            a3 = (src[s + i + 3] + paethPredictor(a3, b3, c3)) & 0xFF;
+            dest[d + i] = (byte) a0;
+            dest[d + i + 1] = (byte) a1;
+            dest[d + i + 2] = (byte) a2;
+            dest[d + i + 3] = (byte) a3;
+            c0 = b0;
+            c1 = b1;
+            c2 = b2;
+            c3 = b3;
+        }
+    }
+
+    private static void paeth3(byte[] src, int s, byte[] dest, int d, byte[] prev, int p, int stride) {
+        int a0 = 0, a1 = 0, a2 = 0;
+        int c0 = 0, c1 = 0, c2 = 0;
+        for (int i = 0; i < stride; i += 3) {
+            int b0 = prev[p + i] & 0xFF;
+            int b1 = prev[p + i + 1] & 0xFF;
+            int b2 = prev[p + i + 2] & 0xFF;
+            a0 = (src[s + i] + paethPredictor(a0, b0, c0)) & 0xFF;
+            a1 = (src[s + i + 1] + paethPredictor(a1, b1, c1)) & 0xFF;
+            a2 = (src[s + i + 2] + paethPredictor(a2, b2, c2)) & 0xFF;
+            dest[d + i] = (byte) a0;
+            dest[d + i + 1] = (byte) a1;
+            dest[d + i + 2] = (byte) a2;
+            c0 = b0;
+            c1 = b1;
+            c2 = b2;
+        }
+    }
+
+    /*
+        Branchless Paeth predictor: the comparisons of the reference implementation become sign masks, so that the
+        choice between a, b and c depends on no data-dependent branch (pixels of natural images pick all three in turn,
+        which a branch predictor cannot learn) and on no lookup table, which would compete with the scanlines for the L1 cache.
+        pa, pb and pc are at most 510, so the differences of two of them never overflow
+     */
+    static int paethPredictor(int a, int b, int c) {
+        int bc = b - c;
+        int ac = a - c;
+        int pa = Math.abs(bc);
+        int pb = Math.abs(ac);
+        int pc = Math.abs(ac + bc);
+        // -1 if pc < pb: c is preferred to b
+        int cOverB = (pc - pb) >> 31;
+        int predictor = b ^ ((b ^ c) & cOverB);
+        int pbc = pb ^ ((pb ^ pc) & cOverB);
+        // -1 if min(pb, pc) < pa: a loses its priority
+        int notA = (pbc - pa) >> 31;
+        return a ^ ((a ^ predictor) & notA);
+    }
+}
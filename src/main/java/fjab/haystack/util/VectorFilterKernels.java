@@ -0,0 +1,143 @@
+package fjab.haystack.util;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels computing a whole vector of bytes at a time with the Vector API.<br>
+ * Filtering has no serial dependency (the predictors only use unfiltered bytes), so all filter types are computed on
+ * 16-bit lanes holding the unsigned bytes x, a, b and c, and narrowed back to bytes. The same lanes give the sum of
+ * absolute differences used to choose a filter type. When unfiltering, Up has no dependency at all and Sub with
+ * 4 bytes per pixel is a prefix sum over the pixels of a vector, computed in log2(pixels per vector) shifted additions.
+ * Average and Paeth depend on the byte just reconstructed and remain scalar.<br>
+ * Only loaded by {@link FilterKernels#INSTANCE} when the module jdk.incubator.vector is present.
+ */
+final class VectorFilterKernels extends ScalarFilterKernels {
+
+    private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED;
+    /**
+     * Bytes with as many lanes as {@link #SHORTS}, so that they can be widened to a single short vector
+     */
+    private static final VectorSpecies<Byte> BYTES = VectorSpecies.of(byte.class, VectorShape.forBitSize(SHORTS.vectorBitSize() / 2));
+    private static final VectorSpecies<Byte> FULL_BYTES = ByteVector.SPECIES_PREFERRED;
+    private static final int LANES = SHORTS.length();
+    private static final int FULL_LANES = FULL_BYTES.length();
+    /**
+     * Broadcast of the last pixel of a vector to all its pixels
+     */
+    private static final VectorShuffle<Byte> LAST_PIXEL = VectorShuffle.fromOp(FULL_BYTES, i -> FULL_LANES - 4 + (i & 3));
+    private static final ByteVector ZERO = ByteVector.zero(FULL_BYTES);
+
+    @Override
+    public boolean isVectorized() {
+        return true;
+    }
+
+    @Override
+    public void filter(byte filterType, byte[] src, int srcOffset, byte[] prev, int prevOffset, byte[] dest, int destOffset,
+                       int stride, int bytesPerPixel) {
+        if (filterType == 0 || stride < bytesPerPixel + LANES) {
+            filterRange(filterType, src, srcOffset, prev, prevOffset, dest, destOffset, 0, stride, bytesPerPixel);
+            return;
+        }
+        // the first pixel has no byte a or c
+        filterRange(filterType, src, srcOffset, prev, prevOffset, dest, destOffset, 0, bytesPerPixel, bytesPerPixel);
+        int i = bytesPerPixel;
+        for (; i <= stride - LANES; i += LANES) {
+            ShortVector filtered = filteredLanes(filterType, src, srcOffset + i, prev, prevOffset + i, bytesPerPixel);
+            ((ByteVector) filtered.convertShape(VectorOperators.S2B, BYTES, 0)).intoArray(dest, destOffset + i);
+        }
+        filterRange(filterType, src, srcOffset, prev, prevOffset, dest, destOffset, i, stride, bytesPerPixel);
+    }
+
+    @Override
+    public long sumAbsDiff(byte filterType, byte[] src, int srcOffset, byte[] prev, int prevOffset, int stride, int bytesPerPixel, long limit) {
+        int start = filterType == 0 ? 0 : bytesPerPixel;
+        if (stride < start + LANES) {
+            return sumAbsDiffRange(filterType, src, srcOffset, prev, prevOffset, 0, stride, bytesPerPixel, limit);
+        }
+        long sum = sumAbsDiffRange(filterType, src, srcOffset, prev, prevOffset, 0, start, bytesPerPixel, limit);
+        int i = start;
+        for (; i <= stride - LANES && sum < limit; i += LANES) {
+            ShortVector filtered = filteredLanes(filterType, src, srcOffset + i, prev, prevOffset + i, bytesPerPixel);
+            // sign extension of the low byte gives the filtered byte as a signed value
+            sum += filtered.lanewise(VectorOperators.LSHL, 8).lanewise(VectorOperators.ASHR, 8)
+                    .lanewise(VectorOperators.ABS)
+                    .reduceLanesToLong(VectorOperators.ADD);
+        }
+        if (sum >= limit) {
+            return sum;
+        }
+        return sum + sumAbsDiffRange(filterType, src, srcOffset, prev, prevOffset, i, stride, bytesPerPixel, limit - sum);
+    }
+
+    @Override
+    public void unfilterUp(byte[] src, int srcOffset, byte[] dest, int destOffset, byte[] prev, int prevOffset, int stride) {
+        int i = 0;
+        for (; i <= stride - FULL_LANES; i += FULL_LANES) {
+            ByteVector.fromArray(FULL_BYTES, src, srcOffset + i)
+                    .add(ByteVector.fromArray(FULL_BYTES, prev, prevOffset + i))
+                    .intoArray(dest, destOffset + i);
+        }
+        for (; i < stride; i++) {
+            dest[destOffset + i] = (byte) (src[srcOffset + i] + prev[prevOffset + i]);
+        }
+    }
+
+    @Override
+    public void unfilterSub4(byte[] src, int srcOffset, byte[] dest, int destOffset, int stride) {
+        ByteVector carry = ZERO;
+        int i = 0;
+        for (; i <= stride - FULL_LANES; i += FULL_LANES) {
+            ByteVector v = ByteVector.fromArray(FULL_BYTES, src, srcOffset + i);
+            // prefix sum over the pixels of the vector: lane j accumulates lanes j - 4, j - 8, ...
+            for (int shift = 4; shift < FULL_LANES; shift <<= 1) {
+                v = v.add(ZERO.slice(FULL_LANES - shift, v));
+            }
+            v = v.add(carry);
+            v.intoArray(dest, destOffset + i);
+            carry = v.rearrange(LAST_PIXEL);
+        }
+        unfilterSub4Range(src, srcOffset, dest, destOffset, i, stride);
+    }
+
+    /**
+     * Filtered values of LANES bytes starting at the given offsets, in the low byte of 16-bit lanes.
+     * The offsets must be at least bytesPerPixel bytes into the scanlines
+     */
+    private static ShortVector filteredLanes(byte filterType, byte[] src, int s, byte[] prev, int p, int bpp) {
+        ShortVector x = unsignedLanes(src, s);
+        ShortVector predictor = switch (filterType) {
+            case 0 -> ShortVector.zero(SHORTS);
+            case 1 -> unsignedLanes(src, s - bpp);
+            case 2 -> unsignedLanes(prev, p);
+            case 3 -> unsignedLanes(src, s - bpp).add(unsignedLanes(prev, p)).lanewise(VectorOperators.LSHR, 1);
+            case 4 -> {
+                ShortVector a = unsignedLanes(src, s - bpp);
+                ShortVector b = unsignedLanes(prev, p);
+                ShortVector c = unsignedLanes(prev, p - bpp);
+                ShortVector bc = b.sub(c);
+                ShortVector ac = a.sub(c);
+                // with p = a + b - c: |p - a| = |b - c|, |p - b| = |a - c|, |p - c| = |(b - c) + (a - c)|
+                ShortVector pa = bc.abs();
+                ShortVector pb = ac.abs();
+                ShortVector pc = bc.add(ac).abs();
+                VectorMask<Short> useA = pa.compare(VectorOperators.LE, pb).and(pa.compare(VectorOperators.LE, pc));
+                VectorMask<Short> useB = pb.compare(VectorOperators.LE, pc);
+                yield c.blend(b, useB).blend(a, useA);
+            }
+            default -> throw new RuntimeException("Unsupported filter type: " + filterType);
+        };
+        return x.sub(predictor);
+    }
+
+    private static ShortVector unsignedLanes(byte[] data, int offset) {
+        return ((ShortVector) ByteVector.fromArray(BYTES, data, offset).convertShape(VectorOperators.B2S, SHORTS, 0))
+                .and((short) 0xFF);
+    }
+}
@@ -0,0 +1,59 @@
+package fjab.haystack;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+public class BatchTranscoderTest {
+
+    @Test
+    public void testBatchTranscoding(@TempDir Path tempDir) throws IOException {
+        var sourceDir = tempDir.resolve("source");
+        var destDir = tempDir.resolve("dest");
+        var testNames = TestImages.names().toList();
+        for (var testName : testNames) {
+            var file = sourceDir.resolve(testName).resolve(testName + ".png");
+            Files.createDirectories(file.getParent());
+            Files.copy(TestImages.png(testName), file);
+        }
+        Files.write(sourceDir.resolve("corrupted.png"), new byte[]{1, 2, 3});
+
+        // a budget smaller than any image transcodes one file at a time
+        var report = new BatchTranscoder(sourceDir, destDir, 1).run();
+        Assertions.assertEquals(4, report.files());
+        Assertions.assertEquals(1, report.errors().size());
+        Assertions.assertEquals(sourceDir.resolve("corrupted.png"), report.errors().get(0).file());
+        Assertions.assertEquals(3, report.latencies().length);
+        for (var testName : testNames) {
+            TestImages.assertFileEquals(TestImages.modifiedPng(testName), destDir.resolve(testName).resolve(testName + ".png"));
+        }
+    }
+
+    @Test
+    public void testBatchTranscodingUnreadableDirectory(@TempDir Path tempDir) throws IOException {
+        var sourceDir = tempDir.resolve("source");
+        var destDir = tempDir.resolve("dest");
+        var unreadableDir = sourceDir.resolve("unreadable");
+        Files.createDirectories(unreadableDir);
+        Files.copy(TestImages.png("lambda"), unreadableDir.resolve("lambda.png"));
+        Files.copy(TestImages.png("fire"), sourceDir.resolve("fire.png"));
+        Files.setPosixFilePermissions(unreadableDir, PosixFilePermissions.fromString("---------"));
+        try {
+            // permissions do not apply to root
+            Assumptions.assumeFalse(Files.isReadable(unreadableDir), "Directory is still readable");
+            var report = new BatchTranscoder(sourceDir, destDir, Long.MAX_VALUE).run();
+            Assertions.assertEquals(2, report.files());
+            Assertions.assertEquals(1, report.errors().size());
+            Assertions.assertEquals(unreadableDir, report.errors().get(0).file());
+            TestImages.assertFileEquals(TestImages.modifiedPng("fire"), destDir.resolve("fire.png"));
+        } finally {
+            Files.setPosixFilePermissions(unreadableDir, PosixFilePermissions.fromString("rwx------"));
+        }
+    }
+}
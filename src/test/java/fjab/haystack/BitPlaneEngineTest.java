@@ -0,0 +1,78 @@
+package fjab.haystack;
+
+import fjab.haystack.domain.Png;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+public class BitPlaneEngineTest {
+
+    @ForEachTestImage
+    public void testBitPlaneEmbedding(String testName) throws IOException {
+        var random = new Random(42);
+        Png png = new PngDecoder(TestImages.png(testName).toString()).decode();
+        for (int bitsPerChannel : new int[]{1, 2, 3, 8}) {
+            for (boolean alpha : new boolean[]{false, true}) {
+                var engine = new BitPlaneEngine(png.imageSize(), bitsPerChannel, alpha);
+                byte[] payload = new byte[(int) engine.capacity() - random.nextInt(100)];
+                random.nextBytes(payload);
+
+                // the payload bits fill the selected bits byte after byte, least significant bit first
+                byte[] imageData = png.imageData();
+                Assertions.assertEquals(payload.length, engine.embed(imageData, new ByteArrayInputStream(payload)));
+                Assertions.assertArrayEquals(embedBitByBit(png.imageData(), png.imageSize().bytesPerPixel(), bitsPerChannel, alpha, payload), imageData);
+
+                var extracted = new ByteArrayOutputStream();
+                engine.extract(imageData, payload.length, extracted);
+                Assertions.assertArrayEquals(payload, extracted.toByteArray());
+            }
+        }
+
+        var engine = new BitPlaneEngine(png.imageSize(), 2, false);
+        byte[] tooLarge = new byte[(int) engine.capacity() + 1];
+        Assertions.assertThrows(RuntimeException.class, () -> engine.embed(png.imageData(), new ByteArrayInputStream(tooLarge)));
+    }
+
+    @ForEachTestImage
+    public void testStreamingEmbedding(String testName, @TempDir Path tempDir) throws IOException {
+        /*
+            Scanlines are decoded, embedded and encoded one at a time
+         */
+        var random = new Random(42);
+        var sourceFile = TestImages.png(testName).toString();
+        var imageSize = new PngDecoder(sourceFile).decodeLazy().imageSize();
+        var engine = new BitPlaneEngine(imageSize, 2, false);
+        byte[] payload = new byte[(int) engine.capacity() / 2];
+        random.nextBytes(payload);
+        var file = tempDir.resolve(testName + "-modified.png");
+        try (var reader = new PngDecoder(sourceFile).openScanlineReader();
+             var out = Files.newOutputStream(file)) {
+            new StreamingPngEncoder(out).encode(engine.embedding(reader, new ByteArrayInputStream(payload)));
+        }
+        var extracted = new ByteArrayOutputStream();
+        var extractor = engine.extractor(payload.length, extracted);
+        new PngDecoder(file.toString()).decodeScanlines(extractor);
+        Assertions.assertTrue(extractor.isComplete());
+        Assertions.assertArrayEquals(payload, extracted.toByteArray());
+    }
+
+    private static byte[] embedBitByBit(byte[] imageData, int bytesPerPixel, int bitsPerChannel, boolean alpha, byte[] payload) {
+        byte[] result = imageData.clone();
+        long payloadBits = payload.length * 8L;
+        long bit = 0;
+        for (int i = 0; i < result.length && bit < payloadBits; i++) {
+            if (i % bytesPerPixel == 3 && !alpha) continue;
+            for (int b = 0; b < bitsPerChannel && bit < payloadBits; b++, bit++) {
+                int value = (payload[(int) (bit / 8)] >>> (bit % 8)) & 1;
+                result[i] = (byte) ((result[i] & ~(1 << b)) | (value << b));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,95 @@
+package fjab.haystack;
+
+import fjab.haystack.domain.ChunkInfo;
+import fjab.haystack.domain.Png;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class DecodedImageCacheTest {
+
+    @Test
+    public void testDecodedImageCache(@TempDir Path tempDir) throws Exception {
+        var files = new LinkedHashMap<String, Path>();
+        for (var testName : new String[]{"lambda", "event-bridge", "fire"}) {
+            files.put(testName, Files.copy(TestImages.png(testName), tempDir.resolve(testName + ".png")));
+        }
+        var eventBridgeBytes = entryBytes("event-bridge");
+        var fireBytes = entryBytes("fire");
+        var cache = new DecodedImageCache(eventBridgeBytes + fireBytes);
+
+        var lambdaData = TestImages.unfilteredData("lambda");
+        Png lambda = cache.get(files.get("lambda"));
+        Assertions.assertArrayEquals(lambdaData, lambda.imageData());
+        Assertions.assertEquals(1, cache.missCount());
+
+        // each caller gets its own copy, whose modifications are not seen by the other callers
+        new PixelView(lambda).fill(0, 0, 10, 10, 0xFF00FF00);
+        Assertions.assertTrue(lambda.isModified());
+        Png cached = cache.get(files.get("lambda"));
+        Assertions.assertNotSame(lambda, cached);
+        Assertions.assertArrayEquals(lambdaData, cached.imageData());
+        Assertions.assertFalse(cached.isModified());
+        Assertions.assertEquals(1, cache.hitCount());
+        Assertions.assertEquals(1, cache.missCount());
+
+        // lambda is the least recently used image when fire does not fit anymore
+        cache.get(files.get("event-bridge"));
+        cache.get(files.get("fire"));
+        Assertions.assertEquals(1, cache.evictionCount());
+        Assertions.assertEquals(2, cache.size());
+        Assertions.assertEquals(eventBridgeBytes + fireBytes, cache.bytes());
+        cache.get(files.get("lambda"));
+        Assertions.assertEquals(4, cache.missCount());
+
+        // a file modified on disk is decoded again
+        cache.get(files.get("fire"));
+        Files.setLastModifiedTime(files.get("fire"), FileTime.fromMillis(System.currentTimeMillis() + 60_000));
+        cache.get(files.get("fire"));
+        Assertions.assertEquals(5, cache.missCount());
+    }
+
+    @Test
+    public void testConcurrentMisses(@TempDir Path tempDir) throws Exception {
+        /*
+            Concurrent misses on the same file decode it once
+         */
+        var file = Files.copy(TestImages.png("event-bridge"), tempDir.resolve("event-bridge.png"));
+        var cache = new DecodedImageCache(Long.MAX_VALUE);
+        var expected = TestImages.unfilteredData("event-bridge");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            var futures = new ArrayList<Future<Png>>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> cache.get(file)));
+            }
+            for (var future : futures) {
+                Assertions.assertArrayEquals(expected, future.get().imageData());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assertions.assertEquals(1, cache.missCount());
+    }
+
+    /**
+     * @return number of bytes of the image data and of the IDAT chunks of the test image, as weighed by the cache
+     */
+    private static long entryBytes(String testName) throws IOException {
+        long idatBytes = new PngDecoder(TestImages.png(testName).toString()).decodeLazy().chunkIndex().stream()
+                .filter(chunk -> chunk.typeName().equals("IDAT"))
+                .mapToLong(ChunkInfo::length)
+                .sum();
+        return Files.size(TestImages.unfilteredDataPath(testName)) + idatBytes;
+    }
+}
@@ -0,0 +1,20 @@
+package fjab.haystack;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Runs the annotated test once for each test image of {@link TestImages#names()}, passing the name of the image as the
+ * first argument
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@ParameterizedTest(name = "{0}")
+@MethodSource("fjab.haystack.TestImages#names")
+public @interface ForEachTestImage {
+}
@@ -0,0 +1,90 @@
+package fjab.haystack;
+
+import fjab.haystack.domain.Png;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public class PixelViewTest {
+
+    @ForEachTestImage
+    public void testPixelView(String testName, @TempDir Path tempDir) throws IOException {
+        Png png = new PngDecoder(TestImages.png(testName).toString()).decode();
+        var view = new PixelView(png);
+        int width = view.width();
+        int height = view.height();
+        int opaque = view.hasAlpha() ? 0 : 0xFF000000;
+
+        // expected pixels, read from the image data
+        int[] expected = new int[width * height];
+        byte[] imageData = png.imageData();
+        int bytesPerPixel = png.imageSize().bytesPerPixel();
+        for (int i = 0; i < expected.length; i++) {
+            int offset = i * bytesPerPixel;
+            int a = bytesPerPixel == 4 ? imageData[offset + 3] & 0xFF : 0xFF;
+            expected[i] = a << 24 | (imageData[offset] & 0xFF) << 16 | (imageData[offset + 1] & 0xFF) << 8 | imageData[offset + 2] & 0xFF;
+        }
+        int[] row = new int[width + 1];
+        IntBuffer directRow = ByteBuffer.allocateDirect(width * 4).asIntBuffer();
+        for (int y = 0; y < height; y++) {
+            view.getRow(y, row, 1);
+            Assertions.assertArrayEquals(Arrays.copyOfRange(expected, y * width, (y + 1) * width), Arrays.copyOfRange(row, 1, width + 1));
+            view.getRow(y, directRow.clear());
+            for (int x = 0; x < width; x++) {
+                Assertions.assertEquals(expected[y * width + x], directRow.get(x));
+                Assertions.assertEquals(expected[y * width + x], view.getArgb(x, y));
+            }
+        }
+        Assertions.assertFalse(png.isModified());
+
+        view.setArgb(width - 1, height - 1, 0x12345678);
+        expected[width * height - 1] = 0x12345678 | opaque;
+        Assertions.assertTrue(png.isModified());
+
+        // overlapping regions, with the destination below and to the right of the source
+        int regionWidth = width / 2;
+        int regionHeight = height / 2;
+        int[] before = expected.clone();
+        view.copyRegion(0, 0, regionWidth, regionHeight, width / 4, height / 4);
+        for (int y = 0; y < regionHeight; y++) {
+            System.arraycopy(before, y * width, expected, (y + height / 4) * width + width / 4, regionWidth);
+        }
+
+        view.fill(width / 3, 1, width / 2, height - 2, 0x80FF8000);
+        for (int y = 1; y < height - 1; y++) {
+            Arrays.fill(expected, y * width + width / 3, y * width + width / 3 + width / 2, 0x80FF8000 | opaque);
+        }
+
+        view.mapChannel(PixelView.Channel.GREEN, value -> 255 - value);
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] ^= 0x0000FF00;
+        }
+
+        for (int x = 0; x < width; x++) {
+            directRow.put(x, x * 0x01010101);
+        }
+        view.setRow(0, directRow.clear());
+        for (int x = 0; x < width; x++) {
+            expected[x] = x * 0x01010101 | opaque;
+        }
+
+        for (int y = 0; y < height; y++) {
+            view.getRow(y, row, 0);
+            Assertions.assertArrayEquals(Arrays.copyOfRange(expected, y * width, (y + 1) * width), Arrays.copyOf(row, width));
+        }
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> view.getArgb(width, 0));
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> view.fill(1, 0, width, 1, 0));
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> view.getRow(0, new int[width - 1], 0));
+
+        // the modified image data is encoded, instead of the original IDAT chunks
+        Assertions.assertFalse(png.hasReusableIdat());
+        var file = tempDir.resolve(testName + "-modified.png");
+        new PngEncoder(file.toString()).encode(png);
+        Assertions.assertArrayEquals(png.imageData(), new PngDecoder(file.toString()).decode().imageData());
+    }
+}
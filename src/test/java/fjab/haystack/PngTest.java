@@ -1,14 +1,48 @@
 package fjab.haystack;
 
 
+import fjab.haystack.domain.Chunk;
+import fjab.haystack.domain.ChunkInfo;
+import fjab.haystack.domain.ImageSize;
 import fjab.haystack.domain.Png;
+import fjab.haystack.observer.LatencyHistogramObserver;
+import fjab.haystack.observer.Stage;
+import fjab.haystack.observer.StageObserver;
+import fjab.haystack.observer.TestOutputObserver;
+import fjab.haystack.util.CompressUtil;
+import fjab.haystack.util.FilterStrategy;
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.MethodSource;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static fjab.haystack.TestImages.assertFileEquals;
 
 public class PngTest {
     /*
@@ -32,6 +66,8 @@ public class PngTest {
     @Test
     public void testFileLargeImage() throws IOException {
         var testName = "large-image";
+        // the large image is not checked in, the test only runs where it has been copied into src/test/resources
+        Assumptions.assumeTrue(Files.exists(Paths.get("src/test/resources", testName)), "Missing test image " + testName);
         runTestCase(testName);
     }
 
@@ -44,14 +80,492 @@ public class PngTest {
         runTestCase(testName);
     }
 
+    @ForEachTestImage
+    public void testScanlineDecoding(String testName) throws IOException {
+        /*
+            Streaming decoding must produce the same rows as the full decoding
+         */
+        var expected = TestImages.unfilteredData(testName);
+        var actual = new ByteArrayOutputStream();
+        var imageSize = new PngDecoder(TestImages.png(testName).toString())
+                .decodeScanlines((rowIndex, scanline) -> actual.write(scanline));
+        Assertions.assertEquals(imageSize.height() * imageSize.stride(), actual.size());
+        Assertions.assertArrayEquals(expected, actual.toByteArray());
+    }
+
+    @ForEachTestImage
+    public void testPipelinedDecoding(String testName) throws IOException {
+        var sourceFile = TestImages.png(testName).toString();
+        var expected = TestImages.unfilteredData(testName);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Png png = new PngDecoder(sourceFile).decodePipelined(executor);
+            Assertions.assertArrayEquals(expected, png.imageData());
+        } finally {
+            executor.shutdown();
+        }
+
+        // an executor running the inflating task on the calling thread falls back to sequential decoding
+        Png png = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(30),
+                () -> new PngDecoder(sourceFile).decodePipelined(Runnable::run));
+        Assertions.assertArrayEquals(expected, png.imageData());
+    }
+
+    @ParameterizedTest
+    @MethodSource("fjab.haystack.TestImages#interlacedNames")
+    public void testInterlacedDecoding(String testName, @TempDir Path tempDir) throws IOException {
+        /*
+            The interlaced files are the Adam7 versions of the test images, with filter types 0 to 4 in turn
+         */
+        var sourceFile = TestImages.interlacedPng(testName).toString();
+        var expected = TestImages.unfilteredData(testName);
+        Assertions.assertArrayEquals(expected, new PngDecoder(sourceFile).decode().imageData());
+        Assertions.assertArrayEquals(expected, new PngDecoder(sourceFile).decodeLazy().imageData());
+
+        List<Integer> passes = new ArrayList<>();
+        Png png = new PngDecoder(sourceFile).decodeProgressive((pass, imageSize, preview) -> {
+            passes.add(pass);
+            if (pass == 1) {
+                // each 8x8 block has the colour of its top-left pixel
+                int stride = imageSize.stride();
+                int bytesPerPixel = imageSize.bytesPerPixel();
+                for (int y = 0; y < imageSize.height(); y++) {
+                    for (int x = 0; x < imageSize.width(); x++) {
+                        int blockOffset = (y & ~7) * stride + (x & ~7) * bytesPerPixel;
+                        int offset = y * stride + x * bytesPerPixel;
+                        Assertions.assertArrayEquals(
+                                Arrays.copyOfRange(expected, blockOffset, blockOffset + bytesPerPixel),
+                                Arrays.copyOfRange(preview, offset, offset + bytesPerPixel));
+                    }
+                }
+            } else if (pass == 7) {
+                Assertions.assertArrayEquals(expected, preview);
+            }
+        });
+        Assertions.assertEquals(List.of(1, 2, 3, 4, 5, 6, 7), passes);
+        Assertions.assertArrayEquals(expected, png.imageData());
+
+        // the image data is re-encoded without interlacing
+        var destFile = tempDir.resolve(testName + ".png").toString();
+        new PngEncoder(destFile).encode(png);
+        Assertions.assertArrayEquals(expected, new PngDecoder(destFile).decode().imageData());
+
+        Assertions.assertThrows(RuntimeException.class, () -> new PngDecoder(sourceFile).openScanlineReader());
+    }
+
+    @ForEachTestImage
+    public void testLazyDecoding(String testName) throws IOException {
+        var sourceFile = TestImages.png(testName).toString();
+        Png expected = new PngDecoder(sourceFile).decode();
+        Png png = new PngDecoder(sourceFile).decodeLazy();
+        Assertions.assertFalse(png.isLoaded());
+        Assertions.assertEquals(expected.imageSize(), png.imageSize());
+
+        List<ChunkInfo> chunkIndex = png.chunkIndex();
+        Assertions.assertEquals(expected.chunkIndex().size(), chunkIndex.size());
+        Assertions.assertEquals("IHDR", chunkIndex.get(0).typeName());
+        Assertions.assertEquals(Png.PNG_SIGNATURE.length, chunkIndex.get(0).offset());
+        Assertions.assertEquals(13, chunkIndex.get(0).length());
+        Assertions.assertEquals("IEND", chunkIndex.get(chunkIndex.size() - 1).typeName());
+        Assertions.assertEquals(Files.size(Paths.get(sourceFile)), chunkIndex.get(chunkIndex.size() - 1).offset() + 12);
+        Assertions.assertFalse(png.isLoaded());
+
+        // a copy made before the image data is accessed decodes its own image data
+        Png copy = png.copy();
+        Assertions.assertArrayEquals(expected.imageData(), png.imageData());
+        Assertions.assertTrue(png.isLoaded());
+        Assertions.assertEquals(expected.idat().size(), png.idat().size());
+        Assertions.assertFalse(copy.isLoaded());
+        Assertions.assertArrayEquals(expected.imageData(), copy.imageData());
+        Assertions.assertNotSame(png.readOnlyImageData(), copy.readOnlyImageData());
+        Assertions.assertTrue(copy.hasReusableIdat());
+    }
+
+    @Test
+    public void testMissingIhdr(@TempDir Path tempDir) throws IOException {
+        var file = tempDir.resolve("no-ihdr.png");
+        Files.write(file, Png.PNG_SIGNATURE);
+        Files.write(file, PngEncoder.encodeChunk(Chunk.iend()).array(), StandardOpenOption.APPEND);
+        for (var decoder : List.<Executable>of(() -> new PngDecoder(file.toString()).decode(), () -> new PngDecoder(file.toString()).decodeLazy())) {
+            var e = Assertions.assertThrows(RuntimeException.class, decoder);
+            Assertions.assertEquals("No IHDR chunk found", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testScanlineDecodingChecksEndOfData(@TempDir Path tempDir) throws IOException {
+        /*
+            Reading the last row checks the zlib checksum and the CRC of the last IDAT chunk, as decoding the whole image does
+         */
+        ImageSize imageSize = new PngDecoder(TestImages.png("lambda").toString()).decodeLazy().imageSize();
+        byte[] decompressed = Files.readAllBytes(TestImages.folder("lambda").resolve("decompressed_data_bytes"));
+        byte[] compressed = CompressUtil.compress(decompressed);
+        var file = tempDir.resolve("lambda.png");
+        writePng(file, imageSize, Chunk.of(Chunk.IDAT_SIGNATURE, compressed));
+        Assertions.assertArrayEquals(TestImages.unfilteredData("lambda"), readScanlines(file));
+
+        byte[] wrongAdler = compressed.clone();
+        wrongAdler[wrongAdler.length - 1] ^= 1;
+        writePng(file, imageSize, Chunk.of(Chunk.IDAT_SIGNATURE, wrongAdler));
+        Assertions.assertThrows(IOException.class, () -> new PngDecoder(file.toString()).decode());
+        Assertions.assertThrows(IOException.class, () -> readScanlines(file));
+
+        Chunk idat = Chunk.of(Chunk.IDAT_SIGNATURE, compressed);
+        writePng(file, imageSize, new Chunk(idat.type(), compressed, idat.length(), idat.crc() ^ 1));
+        var e = Assertions.assertThrows(RuntimeException.class, () -> new PngDecoder(file.toString()).decode());
+        Assertions.assertEquals("CRC check failed", e.getMessage());
+        e = Assertions.assertThrows(RuntimeException.class, () -> readScanlines(file));
+        Assertions.assertEquals("CRC check failed", e.getMessage());
+
+        byte[] extraRow = CompressUtil.compress(Arrays.copyOf(decompressed, decompressed.length + imageSize.stride() + 1));
+        writePng(file, imageSize, Chunk.of(Chunk.IDAT_SIGNATURE, extraRow));
+        Assertions.assertThrows(IOException.class, () -> new PngDecoder(file.toString()).decode());
+        Assertions.assertThrows(IOException.class, () -> readScanlines(file));
+    }
+
+    private static byte[] readScanlines(Path file) throws IOException {
+        var out = new ByteArrayOutputStream();
+        new PngDecoder(file.toString()).decodeScanlines((rowIndex, scanline) -> out.write(scanline));
+        return out.toByteArray();
+    }
+
+    private static void writePng(Path file, ImageSize imageSize, Chunk idat) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(Png.PNG_SIGNATURE));
+            for (Chunk chunk : List.of(Chunk.ihdr(imageSize), idat, Chunk.iend())) {
+                channel.write(PngEncoder.encodeChunk(chunk));
+            }
+        }
+    }
+
+    @ForEachTestImage
+    public void testBandDecoding(String testName, @TempDir Path tempDir) throws IOException {
+        var sourceFile = TestImages.png(testName).toString();
+        Png png = new PngDecoder(sourceFile).decode();
+        int height = png.imageSize().height();
+        int stride = png.imageSize().stride();
+
+        for (int[] band : new int[][]{{0, 1}, {0, height / 3}, {height / 3, height / 2}, {height - 1, height}, {0, height}}) {
+            Png bandPng = new PngDecoder(sourceFile).decode(band[0], band[1]);
+            Assertions.assertEquals(band[1] - band[0], bandPng.imageSize().height());
+            Assertions.assertArrayEquals(
+                    Arrays.copyOfRange(png.imageData(), band[0] * stride, band[1] * stride),
+                    bandPng.imageData());
+        }
+
+        // the band is a valid image on its own
+        var bandFile = tempDir.resolve(testName + "-band.png");
+        Png bandPng = new PngDecoder(sourceFile).decode(height / 4, height / 2);
+        new PngEncoder(bandFile.toString()).encode(bandPng);
+        Assertions.assertArrayEquals(bandPng.imageData(), new PngDecoder(bandFile.toString()).decode().imageData());
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new PngDecoder(sourceFile).decode(0, height + 1));
+    }
+
+    @ForEachTestImage
+    public void testIdatPassthrough(String testName, @TempDir Path tempDir) throws IOException {
+        var options = EncoderOptions.defaults().withIdatPassthrough(true);
+        var sourceFile = TestImages.png(testName).toString();
+        byte[] expected = new PngDecoder(sourceFile).decode().imageData();
+
+        // the IDAT chunks are copied without decoding the image data
+        Png png = new PngDecoder(sourceFile).decodeLazy();
+        var file = tempDir.resolve(testName + ".png");
+        new PngEncoder(file.toString(), options).encode(png);
+        Assertions.assertFalse(png.isLoaded());
+        long criticalChunksSize = png.chunkIndex().stream()
+                .filter(chunk -> List.of("IHDR", "IDAT", "IEND").contains(chunk.typeName()))
+                .mapToLong(chunk -> 12 + chunk.length())
+                .sum();
+        Assertions.assertEquals(Png.PNG_SIGNATURE.length + criticalChunksSize, Files.size(file));
+        Assertions.assertArrayEquals(expected, new PngDecoder(file.toString()).decode().imageData());
+
+        // modified image data is encoded again
+        png = new PngDecoder(sourceFile).decode();
+        png.mutableImageData()[0] ^= 1;
+        Assertions.assertFalse(png.hasReusableIdat());
+        new PngEncoder(file.toString(), options).encode(png);
+        Assertions.assertArrayEquals(png.imageData(), new PngDecoder(file.toString()).decode().imageData());
+        Assertions.assertNotEquals(expected[0], png.imageData()[0]);
+
+        // writing into the array returned by imageData() does not modify the image, whose IDAT chunks stay reusable
+        png = new PngDecoder(sourceFile).decode();
+        png.imageData()[0] ^= 1;
+        Assertions.assertTrue(png.hasReusableIdat());
+        new PngEncoder(file.toString(), options).encode(png);
+        Assertions.assertArrayEquals(expected, png.imageData());
+        Assertions.assertArrayEquals(expected, new PngDecoder(file.toString()).decode().imageData());
+
+        // the chunks of a decoded image do not depend on the file, which can be truncated in place
+        var copiedSource = tempDir.resolve(testName + "-source.png");
+        Files.copy(Paths.get(sourceFile), copiedSource);
+        png = new PngDecoder(copiedSource.toString()).decode();
+        try (var channel = FileChannel.open(copiedSource, StandardOpenOption.WRITE)) {
+            channel.truncate(0);
+        }
+        new PngEncoder(file.toString(), options).encode(png);
+        Assertions.assertArrayEquals(expected, new PngDecoder(file.toString()).decode().imageData());
+    }
+
+    @ForEachTestImage
+    public void testOffHeapImage(String testName, @TempDir Path tempDir) throws IOException {
+        var expected = TestImages.unfilteredData(testName);
+        var file = tempDir.resolve(testName + ".png");
+        try (OffHeapImage image = new PngDecoder(TestImages.png(testName).toString()).decodeOffHeap()) {
+            int stride = image.imageSize().stride();
+            byte[] row = new byte[stride];
+            for (int i = 0; i < image.imageSize().height(); i++) {
+                image.readRow(i, row, 0);
+                Assertions.assertArrayEquals(Arrays.copyOfRange(expected, i * stride, (i + 1) * stride), row);
+            }
+            new PngEncoder(file.toString()).encode(image);
+        }
+        assertFileEquals(TestImages.modifiedPng(testName), file);
+
+        // an existing larger file holds the image data only
+        var rawFile = tempDir.resolve(testName + "-kept.raw");
+        Files.write(rawFile, new byte[expected.length + 1000]);
+        new PngDecoder(TestImages.png(testName).toString()).decodeOffHeap(rawFile).close();
+        Assertions.assertArrayEquals(expected, Files.readAllBytes(rawFile));
+
+        // a window of 3 rows is moved on most accesses
+        var imageSize = new PngDecoder(file.toString()).decodeLazy().imageSize();
+        int stride = imageSize.stride();
+        try (OffHeapImage image = new OffHeapImage(imageSize, tempDir.resolve(testName + ".raw"), true, 3L * stride)) {
+            for (int i = imageSize.height() - 1; i >= 0; i--) {
+                image.writeRow(i, expected, i * stride);
+            }
+            byte[] actual = new byte[expected.length];
+            for (int i = 0; i < imageSize.height(); i++) {
+                image.readRow(i, actual, i * stride);
+            }
+            Assertions.assertArrayEquals(expected, actual);
+        }
+        Assertions.assertFalse(Files.exists(tempDir.resolve(testName + ".raw")));
+    }
+
+    @ForEachTestImage
+    public void testAsyncDecodingAndEncoding(String testName, @TempDir Path tempDir) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            var expected = TestImages.unfilteredData(testName);
+            var file = tempDir.resolve(testName + ".png");
+            var encoder = new PngEncoder(file.toString());
+            new PngDecoder(TestImages.png(testName).toString()).decodeAsync(executor)
+                    .thenCompose(png -> {
+                        Assertions.assertArrayEquals(expected, png.imageData());
+                        return encoder.encodeAsync(png, executor);
+                    })
+                    .join();
+            assertFileEquals(TestImages.modifiedPng(testName), file);
+
+            // IDAT passthrough
+            var passthroughFile = tempDir.resolve(testName + "-passthrough.png");
+            Png png = new PngDecoder(TestImages.png(testName).toString()).decodeLazy();
+            new PngEncoder(passthroughFile.toString(), EncoderOptions.defaults().withIdatPassthrough(true))
+                    .encodeAsync(png, executor)
+                    .join();
+            Assertions.assertFalse(png.isLoaded());
+            Assertions.assertArrayEquals(expected, new PngDecoder(passthroughFile.toString()).decode().imageData());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAsyncDecodingMissingFile(@TempDir Path tempDir) throws IOException {
+        /*
+            Files are opened by the tasks of the executor, never on the calling thread
+         */
+        var tasks = new ArrayDeque<Runnable>();
+        CompletableFuture<Png> missingFile = new PngDecoder(tempDir.resolve("missing.png").toString()).decodeAsync(tasks::add);
+        Assertions.assertFalse(missingFile.isDone());
+        tasks.remove().run();
+        CompletionException e = Assertions.assertThrows(CompletionException.class, missingFile::join);
+        Assertions.assertInstanceOf(NoSuchFileException.class, e.getCause());
+
+        Png png = new PngDecoder(TestImages.png("lambda").toString()).decode();
+        CompletableFuture<Void> missingDirectory = new PngEncoder(tempDir.resolve("missing/lambda.png").toString()).encodeAsync(png, tasks::add);
+        tasks.remove().run();
+        Assertions.assertFalse(missingDirectory.isDone());
+        tasks.remove().run();
+        e = Assertions.assertThrows(CompletionException.class, missingDirectory::join);
+        Assertions.assertInstanceOf(NoSuchFileException.class, e.getCause());
+        Assertions.assertTrue(tasks.isEmpty());
+    }
+
+    @ForEachTestImage
+    public void testEncoderProfiles(String testName, @TempDir Path tempDir) throws IOException {
+        Png png = new PngDecoder(TestImages.png(testName).toString()).decode();
+        var sizes = new EnumMap<EncoderProfile, Long>(EncoderProfile.class);
+        for (EncoderProfile profile : EncoderProfile.values()) {
+            var file = tempDir.resolve(testName + "-" + profile + ".png");
+            new PngEncoder(file.toString(), EncoderOptions.of(profile)).encode(png);
+            Png decoded = new PngDecoder(file.toString()).decode();
+            Assertions.assertArrayEquals(png.imageData(), decoded.imageData());
+            sizes.put(profile, Files.size(file));
+
+            var streamedFile = tempDir.resolve(testName + "-" + profile + "-streamed.png");
+            new PngEncoder(streamedFile.toString(), EncoderOptions.of(profile)).encodeStreaming(png);
+            assertFileEquals(file, streamedFile);
+        }
+        Assertions.assertTrue(sizes.get(EncoderProfile.SMALLEST) <= sizes.get(EncoderProfile.BALANCED));
+        Assertions.assertTrue(sizes.get(EncoderProfile.BALANCED) < sizes.get(EncoderProfile.FASTEST));
+
+        // all the compressed data in a single IDAT chunk, or in chunks of the given size
+        var file = tempDir.resolve(testName + "-" + EncoderProfile.SMALLEST + ".png");
+        Assertions.assertEquals(1, new PngDecoder(file.toString()).decode().idat().size());
+        var options = EncoderOptions.defaults().withIdatChunkSize(1000);
+        new PngEncoder(file.toString(), options).encode(png);
+        Png decoded = new PngDecoder(file.toString()).decode();
+        long compressedLength = decoded.idat().stream().mapToLong(Chunk::length).sum();
+        Assertions.assertEquals((compressedLength + 999) / 1000, decoded.idat().size());
+        Assertions.assertArrayEquals(png.imageData(), decoded.imageData());
+    }
+
+    @ForEachTestImage
+    public void testStreamingEncoding(String testName, @TempDir Path tempDir) throws IOException {
+        /*
+            The streaming encoder produces the same datastream as the encoder working on whole buffers
+         */
+        Png png = new PngDecoder(TestImages.png(testName).toString()).decode();
+        var file = tempDir.resolve(testName + ".png");
+        new PngEncoder(file.toString()).encodeStreaming(png);
+        assertFileEquals(TestImages.modifiedPng(testName), file);
+
+        // scanlines streamed from the decoder to the encoder, with adaptive filtering
+        var transcodedFile = tempDir.resolve(testName + "-transcoded.png");
+        try (var reader = new PngDecoder(TestImages.png(testName).toString()).openScanlineReader();
+             var out = Files.newOutputStream(transcodedFile)) {
+            new StreamingPngEncoder(Channels.newChannel(out),
+                    EncoderOptions.defaults().withFilterStrategy(FilterStrategy.MIN_SUM_ABS_DIFF), StageObserver.NOOP)
+                    .encode(reader);
+        }
+        Assertions.assertArrayEquals(png.imageData(), new PngDecoder(transcodedFile.toString()).decode().imageData());
+    }
+
+    @Test
+    public void testStreamingEncodingWriteStage() throws IOException {
+        /*
+            The time spent writing to the channel, including the IDAT chunks, is counted in the WRITE stage only
+         */
+        Png png = new PngDecoder(TestImages.png("lambda").toString()).decode();
+        var writes = new int[1];
+        var slowChannel = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                writes[0]++;
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                int length = src.remaining();
+                src.position(src.limit());
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        var stageNanos = new EnumMap<Stage, Long>(Stage.class);
+        StageObserver observer = new StageObserver() {
+            @Override
+            public void stageCompleted(Stage stage, long bytes, long nanos) {
+                stageNanos.put(stage, nanos);
+            }
+        };
+        long start = System.nanoTime();
+        new StreamingPngEncoder(slowChannel, EncoderOptions.defaults().withIdatChunkSize(1000), observer).encode(png);
+        long elapsed = System.nanoTime() - start;
+        Assertions.assertTrue(stageNanos.get(Stage.WRITE) >= writes[0] * 2_000_000L);
+        Assertions.assertTrue(stageNanos.get(Stage.FILTER) + stageNanos.get(Stage.DEFLATE) + stageNanos.get(Stage.WRITE) <= elapsed);
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @EnumSource(value = FilterStrategy.class, names = {"MIN_SUM_ABS_DIFF", "BRUTE_FORCE"})
+    public void testAdaptiveFilterStrategies(FilterStrategy strategy, @TempDir Path tempDir) throws IOException {
+        /*
+            Adaptive filtering must be lossless and produce smaller files than filter type 0
+         */
+        var expected = TestImages.unfilteredData("fire");
+        Png png = new PngDecoder(TestImages.png("fire").toString()).decode();
+        var noneFile = tempDir.resolve("none.png");
+        new PngEncoder(noneFile.toString(), FilterStrategy.NONE).encode(png);
+        var file = tempDir.resolve(strategy + ".png");
+        new PngEncoder(file.toString(), strategy).encode(png);
+        Assertions.assertArrayEquals(expected, new PngDecoder(file.toString()).decode().imageData());
+        Assertions.assertTrue(Files.size(file) < Files.size(noneFile), strategy + " output is not smaller");
+    }
+
+    @Test
+    public void testParallelCompression(@TempDir Path tempDir) throws IOException {
+        var testFolderPath = Paths.get("src/test/resources", "lambda");
+        var expected = Files.readAllBytes(testFolderPath.resolve("unfiltered_data_bytes"));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Png png = new PngDecoder(testFolderPath.resolve("lambda.png").toString()).decode();
+            var file = tempDir.resolve("parallel.png");
+            var options = EncoderOptions.defaults()
+                    .withCompressionExecutor(executor)
+                    .withCompressionBlockSize(4096);
+            new PngEncoder(file.toString(), options).encode(png);
+            Assertions.assertArrayEquals(expected, new PngDecoder(file.toString()).decode().imageData());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testLatencyHistogramObserver(@TempDir Path tempDir) throws IOException {
+        var observer = new LatencyHistogramObserver();
+        var testFolderPath = Paths.get("src/test/resources", "lambda");
+        for (int i = 0; i < 3; i++) {
+            Png png = new PngDecoder(testFolderPath.resolve("lambda.png").toString(), observer).decode();
+            new PngEncoder(tempDir.resolve("lambda.png").toString(), EncoderOptions.defaults(), observer).encode(png);
+        }
+        for (var stage : Stage.values()) {
+            Assertions.assertEquals(3, observer.count(stage), stage.toString());
+            Assertions.assertTrue(observer.totalBytes(stage) > 0, stage.toString());
+            Assertions.assertTrue(observer.percentile(stage, 99) >= observer.percentile(stage, 50), stage.toString());
+        }
+        Assertions.assertEquals(3L * Files.size(testFolderPath.resolve("lambda.png")), observer.totalBytes(Stage.CHUNK_PARSE));
+    }
+
+    @Test
+    public void testScanlineDecodingReportsInflateAndUnfilter() throws IOException {
+        /*
+            Band and off-heap decoding inflate and unfilter one row at a time, and report the two stages separately
+         */
+        var observer = new LatencyHistogramObserver();
+        var decoder = new PngDecoder(TestImages.png("lambda").toString(), observer);
+        decoder.decode(0, 1);
+        decoder.decode(1, 3);
+        ImageSize imageSize;
+        try (var image = decoder.decodeOffHeap()) {
+            imageSize = image.imageSize();
+        }
+        Assertions.assertEquals(3, observer.count(Stage.INFLATE));
+        Assertions.assertEquals(3, observer.count(Stage.UNFILTER));
+        Assertions.assertEquals((1 + imageSize.stride()) * (1 + 3 + imageSize.height()), observer.totalBytes(Stage.INFLATE));
+        Assertions.assertEquals(imageSize.stride() * (1 + 2 + imageSize.height()), observer.totalBytes(Stage.UNFILTER));
+    }
+
     private void runTestCase(String testName) throws IOException {
         var originalTestFileName = testName + ".png";
         var resultTestFileName = testName + "-modified.png";
         var testFolderPath = Paths.get("src/test/resources",testName);
-        Png png = new PngDecoder(testFolderPath.resolve(originalTestFileName).toString()).decode();
-
         var testOutputPath = testFolderPath.resolve("testOutput");
-        new PngEncoder(testOutputPath.resolve(resultTestFileName).toString()).encode(png);
+        var testOutputObserver = new TestOutputObserver(testOutputPath);
+        Png png = new PngDecoder(testFolderPath.resolve(originalTestFileName).toString(), testOutputObserver).decode();
+
+        new PngEncoder(testOutputPath.resolve(resultTestFileName).toString(), EncoderOptions.defaults(), testOutputObserver).encode(png);
 
         checkIntermediateResults(testFolderPath, testOutputPath);
         assertFileEquals(testFolderPath.resolve(resultTestFileName), testOutputPath.resolve(resultTestFileName));
@@ -63,8 +577,4 @@ public class PngTest {
         assertFileEquals(testFolderPath.resolve("filtered_data_bytes"), testOutputPath.resolve("filteredData"));
         assertFileEquals(testFolderPath.resolve("compressed_data_bytes"), testOutputPath.resolve("compressedData"));
     }
-
-    private void assertFileEquals(Path path1, Path path2) throws IOException {
-        Assertions.assertArrayEquals(Files.readAllBytes(path1), Files.readAllBytes(path2));
-    }
 }
@@ -0,0 +1,61 @@
+package fjab.haystack;
+
+import org.junit.jupiter.api.Assertions;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+
+/**
+ * Test images of src/test/resources. Each image has its own folder, with the image, the image expected after decoding
+ * and encoding it back (-modified), and the intermediate results of both.<br>
+ * event-bridge and lambda are RGBA8, fire is RGB8 with filter type 3 (average)
+ */
+public final class TestImages {
+
+    private static final Path RESOURCES = Paths.get("src/test/resources");
+
+    private TestImages() {
+    }
+
+    public static Stream<String> names() {
+        return Stream.of("event-bridge", "lambda", "fire");
+    }
+
+    /**
+     * Test images having an Adam7 version (-interlaced)
+     */
+    public static Stream<String> interlacedNames() {
+        return Stream.of("event-bridge", "lambda");
+    }
+
+    public static Path folder(String testName) {
+        return RESOURCES.resolve(testName);
+    }
+
+    public static Path png(String testName) {
+        return folder(testName).resolve(testName + ".png");
+    }
+
+    public static Path modifiedPng(String testName) {
+        return folder(testName).resolve(testName + "-modified.png");
+    }
+
+    public static Path interlacedPng(String testName) {
+        return folder(testName).resolve(testName + "-interlaced.png");
+    }
+
+    public static Path unfilteredDataPath(String testName) {
+        return folder(testName).resolve("unfiltered_data_bytes");
+    }
+
+    public static byte[] unfilteredData(String testName) throws IOException {
+        return Files.readAllBytes(unfilteredDataPath(testName));
+    }
+
+    public static void assertFileEquals(Path path1, Path path2) throws IOException {
+        Assertions.assertArrayEquals(Files.readAllBytes(path1), Files.readAllBytes(path2));
+    }
+}
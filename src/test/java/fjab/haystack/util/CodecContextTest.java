@@ -0,0 +1,39 @@
+package fjab.haystack.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class CodecContextTest {
+
+    @Test
+    public void testRetainedBytesAreBounded() {
+        CodecContext.releasePool();
+        Assertions.assertEquals(0, CodecContext.retainedBytes());
+        int bufferLength = 48 * 1024 * 1024;
+
+        CodecContext first = CodecContext.acquire();
+        CodecContext second = CodecContext.acquire();
+        first.inflateBuffer(bufferLength);
+        first.filterBuffer(bufferLength);
+        second.filterBuffer(bufferLength);
+
+        // the buffers of the second context would take the pool over its limit, so they are dropped
+        first.close();
+        Assertions.assertEquals(2L * bufferLength, CodecContext.retainedBytes());
+        second.close();
+        Assertions.assertEquals(2L * bufferLength, CodecContext.retainedBytes());
+        Assertions.assertTrue(CodecContext.retainedBytes() <= CodecContext.MAX_RETAINED_BYTES);
+
+        // the most recently released context comes back without buffers, the other one with its buffers
+        Assertions.assertSame(second, CodecContext.acquire());
+        Assertions.assertEquals(2L * bufferLength, CodecContext.retainedBytes());
+        Assertions.assertSame(first, CodecContext.acquire());
+        Assertions.assertEquals(0, CodecContext.retainedBytes());
+        Assertions.assertEquals(bufferLength, first.filterBuffer(1).length);
+        Assertions.assertEquals(0, second.filterBuffer(0).length);
+        first.close();
+        second.close();
+        CodecContext.releasePool();
+        Assertions.assertEquals(0, CodecContext.retainedBytes());
+    }
+}
@@ -0,0 +1,74 @@
+package fjab.haystack.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+public class CompressUtilTest {
+
+    @Test
+    public void testParallelCompressionIsValidZlibStream() throws IOException {
+        var input = Files.readAllBytes(Paths.get("src/test/resources/fire/filtered_data_bytes"));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int blockSize : new int[]{1000, 32 * 1024, 100_000, input.length + 1}) {
+                byte[] compressed = CompressUtil.compress(input, Deflater.DEFAULT_COMPRESSION, blockSize, executor);
+                Assertions.assertArrayEquals(input, CompressUtil.decompress(List.<InputStream>of(new ByteArrayInputStream(compressed))));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testAdler32Combine() {
+        byte[] data = new byte[70_000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + i / 7);
+        }
+        int split = 12_345;
+        Adler32 whole = new Adler32();
+        whole.update(data);
+        Adler32 first = new Adler32();
+        first.update(data, 0, split);
+        Adler32 second = new Adler32();
+        second.update(data, split, data.length - split);
+        Assertions.assertEquals(whole.getValue(), CompressUtil.adler32Combine(first.getValue(), second.getValue(), data.length - split));
+    }
+
+    @Test
+    public void testPooledCodecContextIsReused() throws IOException {
+        var input = Files.readAllBytes(Paths.get("src/test/resources/fire/filtered_data_bytes"));
+        byte[] expected = CompressUtil.compress(input);
+        CodecContext first;
+        try (CodecContext context = CodecContext.acquire()) {
+            first = context;
+            byte[] output = context.deflateBuffer(CompressUtil.compressBound(input.length));
+            int length = CompressUtil.compress(input, input.length, context.deflater(Deflater.DEFAULT_COMPRESSION), output);
+            Assertions.assertArrayEquals(expected, Arrays.copyOf(output, length));
+        }
+        // the context goes back to the pool reset, with its buffers
+        try (CodecContext context = CodecContext.acquire()) {
+            Assertions.assertSame(first, context);
+            byte[] output = context.deflateBuffer(CompressUtil.compressBound(input.length));
+            int length = CompressUtil.compress(input, input.length, context.deflater(Deflater.DEFAULT_COMPRESSION), output);
+            Assertions.assertArrayEquals(expected, Arrays.copyOf(output, length));
+
+            byte[] inflated = context.inflateBuffer(input.length);
+            CompressUtil.inflate(List.of(ByteBuffer.wrap(output, 0, length)), inflated, input.length, context.inflater());
+            Assertions.assertArrayEquals(input, Arrays.copyOf(inflated, input.length));
+        }
+    }
+}
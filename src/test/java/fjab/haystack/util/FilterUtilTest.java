@@ -0,0 +1,126 @@
+package fjab.haystack.util;
+
+import fjab.haystack.ForEachTestImage;
+import fjab.haystack.PngDecoder;
+import fjab.haystack.TestImages;
+import fjab.haystack.domain.ImageSize;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+public class FilterUtilTest {
+
+    @ForEachTestImage
+    public void testUnfilterEngineMatchesFixtures(String testName) throws IOException {
+        var testFolderPath = TestImages.folder(testName);
+        var decompressed = Files.readAllBytes(testFolderPath.resolve("decompressed_data_bytes"));
+        var expected = TestImages.unfilteredData(testName);
+        ImageSize imageSize;
+        try (var reader = new PngDecoder(TestImages.png(testName).toString()).openScanlineReader()) {
+            imageSize = reader.imageSize();
+        }
+        Assertions.assertArrayEquals(expected, FilterUtil.unfilter(decompressed, imageSize));
+        Assertions.assertArrayEquals(expected, unfilterInPlace(decompressed.clone(), imageSize));
+        var unfiltered = new byte[expected.length];
+        UnfilterEngine.unfilter(decompressed, imageSize, unfiltered);
+        Assertions.assertArrayEquals(expected, unfiltered);
+    }
+
+    @Test
+    public void testAllFilterTypesRoundTrip() throws IOException {
+        /*
+            Adaptive strategies produce every filter type, which must be reversed by both unfilter implementations
+         */
+        for (int bytesPerPixel : new int[]{3, 4}) {
+            var imageSize = new ImageSize(61, 37, bytesPerPixel, 61 * bytesPerPixel);
+            var imageData = syntheticImage(imageSize);
+            for (var strategy : FilterStrategy.values()) {
+                byte[] filtered = FilterUtil.filter(imageSize, imageData, strategy);
+                Assertions.assertArrayEquals(imageData, FilterUtil.unfilter(filtered, imageSize));
+                Assertions.assertArrayEquals(imageData, unfilterInPlace(filtered, imageSize));
+            }
+        }
+    }
+
+    @Test
+    public void testBranchlessPaethPredictor() {
+        for (int a = 0; a < 256; a++) {
+            for (int b = 0; b < 256; b++) {
+                for (int c = 0; c < 256; c++) {
+                    if (UnfilterEngine.paethPredictor(a, b, c) != ScalarFilterKernels.paethPredictor(a, b, c)) {
+                        Assertions.fail("a = " + a + ", b = " + b + ", c = " + c);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testKernelsFollowVectorModule() {
+        /*
+            The Vector API kernels are loaded only when the module is present and not disabled by the system property,
+            the scalar kernels otherwise. Surefire runs the tests both with and without the module
+         */
+        boolean vectorModule = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+        boolean enabled = Boolean.parseBoolean(System.getProperty("fjab.haystack.vectorKernels", "true"));
+        Assertions.assertEquals(vectorModule && enabled, FilterKernels.INSTANCE.isVectorized());
+    }
+
+    @Test
+    public void testVectorKernelsMatchScalarKernels() {
+        Assumptions.assumeTrue(FilterKernels.INSTANCE.isVectorized(), "module jdk.incubator.vector not present");
+        FilterKernels vector = FilterKernels.INSTANCE;
+        FilterKernels scalar = new ScalarFilterKernels();
+        var random = new Random(7);
+        for (int bytesPerPixel : new int[]{3, 4}) {
+            for (int width : new int[]{1, 5, 16, 33, 257}) {
+                int stride = width * bytesPerPixel;
+                byte[] src = new byte[stride + 3];
+                byte[] prev = new byte[stride + 5];
+                random.nextBytes(src);
+                random.nextBytes(prev);
+                for (byte filterType = 0; filterType < 5; filterType++) {
+                    byte[] expected = new byte[stride + 1];
+                    byte[] actual = new byte[stride + 1];
+                    scalar.filter(filterType, src, 3, prev, 5, expected, 1, stride, bytesPerPixel);
+                    vector.filter(filterType, src, 3, prev, 5, actual, 1, stride, bytesPerPixel);
+                    Assertions.assertArrayEquals(expected, actual);
+                    Assertions.assertEquals(
+                            scalar.sumAbsDiff(filterType, src, 3, prev, 5, stride, bytesPerPixel, Long.MAX_VALUE),
+                            vector.sumAbsDiff(filterType, src, 3, prev, 5, stride, bytesPerPixel, Long.MAX_VALUE));
+                }
+                byte[] expected = new byte[stride];
+                byte[] actual = new byte[stride];
+                scalar.unfilterUp(src, 3, expected, 0, prev, 5, stride);
+                vector.unfilterUp(src, 3, actual, 0, prev, 5, stride);
+                Assertions.assertArrayEquals(expected, actual);
+                if (bytesPerPixel == 4) {
+                    scalar.unfilterSub4(src, 3, expected, 0, stride);
+                    vector.unfilterSub4(src, 3, actual, 0, stride);
+                    Assertions.assertArrayEquals(expected, actual);
+                }
+            }
+        }
+    }
+
+    private static byte[] syntheticImage(ImageSize imageSize) {
+        var random = new Random(42);
+        var imageData = new byte[imageSize.height() * imageSize.stride()];
+        for (int i = 0; i < imageData.length; i++) {
+            // smooth gradients with some noise, so that every filter type wins on some scanlines
+            int row = i / imageSize.stride();
+            imageData[i] = (byte) (row * 3 + (i % imageSize.stride()) / 2 + (random.nextInt(8) < row % 8 ? random.nextInt(256) : 0));
+        }
+        return imageData;
+    }
+
+    private static byte[] unfilterInPlace(byte[] decompressedIdatData, ImageSize imageSize) {
+        int length = UnfilterEngine.unfilter(decompressedIdatData, imageSize);
+        return Arrays.copyOf(decompressedIdatData, length);
+    }
+}